@@ -0,0 +1,47 @@
+package com.brackeen.javagamebook.bench.jmh;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.brackeen.javagamebook.graphics.Animation;
+import com.brackeen.javagamebook.graphics.ImageRegion;
+
+/**
+    Benchmarks Animation.update() followed by getRegion(), as
+    done for each Sprite every tick and frame, for animations
+    with few and many frames.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnimationBenchmark {
+
+    private static final long FRAME_TIME = 100;
+    private static final long STEP = 16;
+
+    @Param({"4", "64"})
+    public int numFrames;
+
+    private Animation anim;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        anim = new Animation();
+        for (int i=0; i<numFrames; i++) {
+            anim.addFrame(new BufferedImage(1, 1,
+                BufferedImage.TYPE_INT_ARGB), FRAME_TIME);
+        }
+    }
+
+
+    @Benchmark
+    public ImageRegion update() {
+        anim.update(STEP);
+        return anim.getRegion();
+    }
+}
@@ -0,0 +1,104 @@
+package com.brackeen.javagamebook.bench.jmh;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.GameManager;
+import com.brackeen.javagamebook.tilegame.ResourceManager;
+import com.brackeen.javagamebook.tilegame.TileMap;
+
+/**
+    Benchmarks GameManager's collision tests on synthetic maps.
+    Each call tests the next Sprite in the map, so every Sprite
+    is tested in turn. linearSpriteCollision is the baseline for
+    spriteCollision: it scans every Sprite in the map, like
+    getSpriteCollision() did before the map had a SpatialHash.
+    The sprite count is limited to half the empty tiles of the
+    map; CollisionPassBenchmark tests full passes of up to 10000
+    Sprites on maps wide enough to hold them.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollisionBenchmark {
+
+    @Param({"256", "1024", "4096"})
+    public int mapWidth;
+
+    @Param({"64", "512", "2048"})
+    public int spriteCount;
+
+    private GameManager game;
+    private Sprite[] sprites;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ResourceManager resourceManager =
+            new ResourceManager(null, true);
+        TileMap map = resourceManager.loadFromFile(
+            SyntheticMaps.write(mapWidth, spriteCount));
+        game = new GameManager();
+        game.setMap(map);
+
+        sprites = new Sprite[map.getNumSprites()];
+        Iterator i = map.getSprites();
+        for (int j=0; j<sprites.length; j++) {
+            sprites[j] = (Sprite)i.next();
+        }
+    }
+
+
+    private Sprite nextSprite() {
+        next = (next + 1) % sprites.length;
+        return sprites[next];
+    }
+
+
+    /**
+        Moves a Sprite one tile to the right.
+    */
+    @Benchmark
+    public Object tileCollision() {
+        Sprite sprite = nextSprite();
+        return game.getTileCollision(sprite,
+            sprite.getX() + 64, sprite.getY());
+    }
+
+
+    @Benchmark
+    public Object spriteCollision() {
+        return game.getSpriteCollision(nextSprite());
+    }
+
+
+    @Benchmark
+    public Object linearSpriteCollision() {
+        Sprite sprite = nextSprite();
+        for (int i=0; i<sprites.length; i++) {
+            if (game.isCollision(sprite, sprites[i])) {
+                return sprites[i];
+            }
+        }
+        return null;
+    }
+
+
+    /**
+        Tests a Sprite against the Sprite halfway through the
+        map's list of Sprites.
+    */
+    @Benchmark
+    public boolean isCollision() {
+        Sprite sprite = nextSprite();
+        Sprite other = sprites[(next + sprites.length / 2) %
+            sprites.length];
+        return game.isCollision(sprite, other);
+    }
+}
@@ -0,0 +1,85 @@
+package com.brackeen.javagamebook.bench.jmh;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.GameManager;
+import com.brackeen.javagamebook.tilegame.ResourceManager;
+import com.brackeen.javagamebook.tilegame.TileMap;
+
+/**
+    Benchmarks a full pass of sprite collision tests, testing
+    every Sprite in the map against the rest as each tick does.
+    The map is wide enough for two Sprites per column, so the
+    density stays the same as the sprite count grows: the
+    spatial hash pass should grow linearly, and the linear scan
+    pass (like getSpriteCollision() before the map had a
+    SpatialHash) quadratically.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollisionPassBenchmark {
+
+    private static final int SPRITES_PER_COLUMN = 2;
+
+    @Param({"1250", "2500", "5000", "10000"})
+    public int spriteCount;
+
+    private GameManager game;
+    private Sprite[] sprites;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ResourceManager resourceManager =
+            new ResourceManager(null, true);
+        TileMap map = resourceManager.loadFromFile(
+            SyntheticMaps.write(spriteCount / SPRITES_PER_COLUMN,
+            spriteCount));
+        game = new GameManager();
+        game.setMap(map);
+
+        sprites = new Sprite[map.getNumSprites()];
+        if (sprites.length != spriteCount) {
+            throw new IllegalStateException("Map has " +
+                sprites.length + " sprites, expected " + spriteCount);
+        }
+        Iterator i = map.getSprites();
+        for (int j=0; j<sprites.length; j++) {
+            sprites[j] = (Sprite)i.next();
+        }
+    }
+
+
+    @Benchmark
+    public int spriteCollisionPass() {
+        int hits = 0;
+        for (int i=0; i<sprites.length; i++) {
+            if (game.getSpriteCollision(sprites[i]) != null) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+
+    @Benchmark
+    public int linearSpriteCollisionPass() {
+        int hits = 0;
+        for (int i=0; i<sprites.length; i++) {
+            for (int j=0; j<sprites.length; j++) {
+                if (game.isCollision(sprites[i], sprites[j])) {
+                    hits++;
+                    break;
+                }
+            }
+        }
+        return hits;
+    }
+}
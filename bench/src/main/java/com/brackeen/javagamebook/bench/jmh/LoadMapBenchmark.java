@@ -0,0 +1,51 @@
+package com.brackeen.javagamebook.bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.brackeen.javagamebook.tilegame.ResourceManager;
+import com.brackeen.javagamebook.tilegame.TileMap;
+
+/**
+    Benchmarks ResourceManager loading synthetic map files. A
+    cold load parses the file; a warm load creates the map from
+    its cached template, like when the player dies.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadMapBenchmark {
+
+    @Param({"256", "1024", "4096"})
+    public int mapWidth;
+
+    @Param({"64", "512", "2048"})
+    public int spriteCount;
+
+    private ResourceManager resourceManager;
+    private String mapFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        resourceManager = new ResourceManager(null, true);
+        mapFile = SyntheticMaps.write(mapWidth, spriteCount);
+    }
+
+
+    @Benchmark
+    public TileMap coldLoad() {
+        resourceManager.clearMapTemplates();
+        return resourceManager.loadFromFile(mapFile);
+    }
+
+
+    @Benchmark
+    public TileMap warmLoad() {
+        return resourceManager.loadFromFile(mapFile);
+    }
+}
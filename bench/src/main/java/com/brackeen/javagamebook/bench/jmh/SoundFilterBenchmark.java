@@ -0,0 +1,84 @@
+package com.brackeen.javagamebook.bench.jmh;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.brackeen.javagamebook.graphics.Animation;
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.sound.EchoFilter;
+import com.brackeen.javagamebook.sound.Filter3d;
+import com.brackeen.javagamebook.sound.FilterSequence;
+import com.brackeen.javagamebook.sound.SoundFilter;
+
+/**
+    Benchmarks the sound filters on a buffer of 16-bit samples.
+    The SoundManager plays sounds with a 100 ms buffer (4410
+    samples at 44100 Hz), so that's the smaller buffer size.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SoundFilterBenchmark {
+
+    @Param({"4410", "44100"})
+    public int numSamples;
+
+    private byte[] samples;
+    private EchoFilter echoFilter;
+    private Filter3d filter3d;
+    private FilterSequence filterSequence;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        samples = new byte[numSamples * 2];
+        new Random(42).nextBytes(samples);
+
+        echoFilter = new EchoFilter(11025, .6f);
+        filter3d = createFilter3d();
+        filterSequence = new FilterSequence(new SoundFilter[] {
+            new EchoFilter(11025, .6f), createFilter3d()
+        });
+    }
+
+
+    /**
+        Creates a Filter3d with the source 400 pixels from the
+        listener, out of a maximum distance of 1000.
+    */
+    private static Filter3d createFilter3d() {
+        Animation anim = new Animation();
+        anim.addFrame(new BufferedImage(1, 1,
+            BufferedImage.TYPE_INT_ARGB), 100);
+        Sprite source = new Sprite(anim);
+        Sprite listener = new Sprite(anim);
+        source.setX(400);
+        return new Filter3d(source, listener, 1000);
+    }
+
+
+    @Benchmark
+    public byte[] echoFilter() {
+        echoFilter.filter(samples, 0, samples.length);
+        return samples;
+    }
+
+
+    @Benchmark
+    public byte[] filter3d() {
+        filter3d.filter(samples, 0, samples.length);
+        return samples;
+    }
+
+
+    @Benchmark
+    public byte[] filterSequence() {
+        filterSequence.filter(samples, 0, samples.length);
+        return samples;
+    }
+}
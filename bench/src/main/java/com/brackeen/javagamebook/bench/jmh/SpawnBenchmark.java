@@ -0,0 +1,66 @@
+package com.brackeen.javagamebook.bench.jmh;
+
+import java.awt.image.BufferedImage;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.brackeen.javagamebook.graphics.Animation;
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.SpriteFactory;
+import com.brackeen.javagamebook.tilegame.SpriteRegistry;
+import com.brackeen.javagamebook.tilegame.sprites.Grub;
+
+/**
+    Benchmarks spawning a Creature through a SpriteRegistry.
+    reflectiveClone is the baseline: it creates the Creature the
+    way Creature.clone() used to, by finding the constructor with
+    reflection and passing it clones of the host Animations.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpawnBenchmark {
+
+    private Animation[] anims;
+    private SpriteRegistry registry;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        anims = new Animation[4];
+        for (int i=0; i<anims.length; i++) {
+            anims[i] = new Animation();
+            anims[i].addFrame(new BufferedImage(64, 48,
+                BufferedImage.TYPE_INT_ARGB), 250);
+        }
+        registry = new SpriteRegistry();
+        registry.register(Grub.class, new SpriteFactory(anims) {
+            public Sprite create() {
+                return new Grub(cloneAnimation(0), cloneAnimation(1),
+                    cloneAnimation(2), cloneAnimation(3));
+            }
+        });
+    }
+
+
+    @Benchmark
+    public Sprite registry() {
+        return registry.create(Grub.class);
+    }
+
+
+    @Benchmark
+    public Object reflectiveClone() throws Exception {
+        Constructor constructor = Grub.class.getConstructors()[0];
+        return constructor.newInstance(new Object[] {
+            (Animation)anims[0].clone(),
+            (Animation)anims[1].clone(),
+            (Animation)anims[2].clone(),
+            (Animation)anims[3].clone()
+        });
+    }
+}
@@ -0,0 +1,85 @@
+package com.brackeen.javagamebook.bench.jmh;
+
+import java.io.*;
+import java.util.Random;
+
+/**
+    Writes synthetic map files of a given width and number of
+    Sprites for the benchmarks. Each map is 15 tiles tall, with
+    two rows of ground, a short platform every 12 columns, and
+    Grubs and Flies at random empty tiles above the ground. The
+    same width and sprite count always give the same map.
+*/
+public class SyntheticMaps {
+
+    public static final int HEIGHT = 15;
+
+    private static final int GROUND_ROW = HEIGHT - 2;
+    private static final int PLATFORM_SPACING = 12;
+    private static final int PLATFORM_LENGTH = 4;
+    // columns left empty so the player starts on clear ground
+    private static final int START_COLUMNS = 6;
+
+    /**
+        Writes a map file with the specified width (in tiles) and
+        number of Sprites to a temporary file, and returns the
+        file's path. The number of Sprites is limited to the
+        number of empty tiles.
+    */
+    public static String write(int width, int spriteCount)
+        throws IOException
+    {
+        char[][] tiles = create(width, spriteCount);
+        File file = File.createTempFile(
+            "map" + width + "x" + spriteCount + "-", ".txt");
+        file.deleteOnExit();
+        PrintWriter out = new PrintWriter(
+            new BufferedWriter(new FileWriter(file)));
+        out.println("# synthetic map: width " + width + ", " +
+            spriteCount + " sprites");
+        for (int y=0; y<HEIGHT; y++) {
+            out.println(new String(tiles[y]));
+        }
+        out.close();
+        return file.getPath();
+    }
+
+
+    /**
+        Creates the rows of a map's characters.
+    */
+    public static char[][] create(int width, int spriteCount) {
+        Random random = new Random(width * 31L + spriteCount);
+        char[][] tiles = new char[HEIGHT][width];
+        for (int y=0; y<HEIGHT; y++) {
+            for (int x=0; x<width; x++) {
+                tiles[y][x] = (y >= GROUND_ROW) ? 'A' : ' ';
+            }
+        }
+
+        // platforms
+        for (int x=START_COLUMNS; x + PLATFORM_LENGTH < width;
+            x+=PLATFORM_SPACING)
+        {
+            int y = GROUND_ROW - 3 - random.nextInt(3);
+            for (int i=0; i<PLATFORM_LENGTH; i++) {
+                tiles[y][x + i] = 'B';
+            }
+        }
+
+        // sprites: Grubs ('1') and Flies ('2')
+        int emptyTiles = (width - START_COLUMNS) * (GROUND_ROW - 1);
+        spriteCount = Math.min(spriteCount, emptyTiles / 2);
+        int placed = 0;
+        while (placed < spriteCount) {
+            int x = START_COLUMNS +
+                random.nextInt(width - START_COLUMNS);
+            int y = 1 + random.nextInt(GROUND_ROW - 1);
+            if (tiles[y][x] == ' ') {
+                tiles[y][x] = (placed % 2 == 0) ? '1' : '2';
+                placed++;
+            }
+        }
+        return tiles;
+    }
+}
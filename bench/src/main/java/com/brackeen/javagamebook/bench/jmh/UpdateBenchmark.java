@@ -0,0 +1,54 @@
+package com.brackeen.javagamebook.bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.brackeen.javagamebook.tilegame.GameManager;
+
+/**
+    Benchmarks a full headless GameManager.update() tick on
+    synthetic maps. The game runs on with each call, as in
+    HeadlessSimulation, so creatures move, shoot, and die over
+    the measurement.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateBenchmark {
+
+    // milliseconds per tick
+    private static final long STEP = 16;
+
+    @Param({"256", "1024", "4096"})
+    public int mapWidth;
+
+    @Param({"64", "512", "2048"})
+    public int spriteCount;
+
+    // tiles around the view that are updated; 0 uses the
+    // game's default
+    @Param({"0"})
+    public int activeRadius;
+
+    private GameManager game;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        game = new GameManager();
+        game.initHeadless(SyntheticMaps.write(mapWidth, spriteCount));
+        if (activeRadius > 0) {
+            game.setActiveRadius(activeRadius);
+        }
+    }
+
+
+    @Benchmark
+    public void update() {
+        game.update(STEP);
+    }
+}
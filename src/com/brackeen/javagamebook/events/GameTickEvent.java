@@ -0,0 +1,43 @@
+package com.brackeen.javagamebook.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+    A Java Flight Recorder event for one update of the game. The
+    event's duration is the time the update took. Stack traces
+    aren't recorded, since the event is recorded every tick from
+    the same place.
+*/
+@Name("tilegame.GameTick")
+@Label("Game Tick")
+@Category("Tilegame")
+@Description("One update of the game logic")
+@StackTrace(false)
+public class GameTickEvent extends jdk.jfr.Event {
+
+    @Label("Step")
+    @Description("Game time simulated by this update")
+    @Timespan(Timespan.MILLISECONDS)
+    public long step;
+
+    @Label("Active Sprites")
+    @Description("Sprites (not including the player) updated")
+    public int activeSprites;
+
+    @Label("Sprites")
+    @Description("Sprites in the map")
+    public int sprites;
+
+    @Label("Bullets")
+    @Description("Bullets in the map after the update")
+    public int bullets;
+
+    @Label("Collision Checks")
+    @Description("Tile, sprite, and bullet collision tests done")
+    public int collisionChecks;
+}
@@ -0,0 +1,41 @@
+package com.brackeen.javagamebook.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+    A Java Flight Recorder event for loading a map. The event's
+    duration is the time the load took, and its thread shows
+    whether the map was prefetched in the background.
+*/
+@Name("tilegame.LevelLoad")
+@Label("Level Load")
+@Category("Tilegame")
+@Description("A map loaded from a map file")
+public class LevelLoadEvent extends jdk.jfr.Event {
+
+    @Label("Map File")
+    public String mapFile;
+
+    @Label("Compiled")
+    @Description("True if the compiled (binary) map file was used")
+    public boolean compiled;
+
+    @Label("Chunked")
+    @Description("True if the map's chunks are loaded as needed")
+    public boolean chunked;
+
+    @Label("Width")
+    @Description("Width of the map, in tiles")
+    public int width;
+
+    @Label("Height")
+    @Description("Height of the map, in tiles")
+    public int height;
+
+    @Label("Sprites")
+    @Description("Sprites spawned in the map")
+    public int sprites;
+}
@@ -0,0 +1,40 @@
+package com.brackeen.javagamebook.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+    A Java Flight Recorder event for playing a sound. The event
+    starts when a pooled thread starts playing the sound and ends
+    when the last sample is written to the line.
+*/
+@Name("tilegame.SoundPlay")
+@Label("Sound Play")
+@Category("Tilegame")
+@Description("A sound played by the SoundManager")
+public class SoundPlayEvent extends jdk.jfr.Event {
+
+    @Label("Queue Delay")
+    @Description("Time from the play request until a thread " +
+        "started playing the sound")
+    @Timespan(Timespan.NANOSECONDS)
+    public long queueDelay;
+
+    @Label("Line Write Time")
+    @Description("Time spent writing samples to the line")
+    @Timespan(Timespan.NANOSECONDS)
+    public long writeTime;
+
+    @Label("Bytes")
+    @Description("Bytes of samples written to the line")
+    @DataAmount
+    public long bytes;
+
+    @Label("Filtered")
+    @Description("True if the sound was played with a SoundFilter")
+    public boolean filtered;
+}
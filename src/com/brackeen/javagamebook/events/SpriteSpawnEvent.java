@@ -0,0 +1,48 @@
+package com.brackeen.javagamebook.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    A Java Flight Recorder event for a Sprite (or Bullet) added
+    to a map.
+*/
+@Name("tilegame.SpriteSpawn")
+@Label("Sprite Spawn")
+@Category("Tilegame")
+@Description("A Sprite or Bullet added to a map")
+public class SpriteSpawnEvent extends jdk.jfr.Event {
+
+    @Label("Sprite Type")
+    public String spriteType;
+
+    @Label("Bullet")
+    public boolean bullet;
+
+    @Label("X")
+    @Description("X position, in pixels")
+    public int x;
+
+    @Label("Y")
+    @Description("Y position, in pixels")
+    public int y;
+
+    /**
+        Commits a SpriteSpawnEvent for the specified Sprite, if
+        the event is enabled.
+    */
+    public static void emit(Sprite sprite, boolean bullet) {
+        SpriteSpawnEvent event = new SpriteSpawnEvent();
+        if (event.isEnabled()) {
+            event.spriteType = sprite.getClass().getName();
+            event.bullet = bullet;
+            event.x = Math.round(sprite.getX());
+            event.y = Math.round(sprite.getY());
+            event.commit();
+        }
+    }
+}
@@ -1,42 +1,49 @@
 package com.brackeen.javagamebook.graphics;
 
 import java.awt.Image;
-import java.util.ArrayList;
 
 /**
     The Animation class manages a series of images (frames) and
-    the amount of time to display each frame.
+    the amount of time to display each frame. Each frame is an
+    ImageRegion, which may be part of a TextureAtlas.
+    <p>The frames are kept in an immutable FrameTable, which is
+    shared by an Animation and its clones. Each Animation only
+    holds its own playback state: the animation time and the
+    current frame. Animations aren't synchronized; each one
+    should only be used by one thread (the game loop) at a time.
 */
 public class Animation {
 
-    private ArrayList frames;
+    private FrameTable frames;
     private int currFrameIndex;
     private long animTime;
-    private long totalDuration;
 
 
     /**
         Creates a new, empty Animation.
     */
     public Animation() {
-        this(new ArrayList(), 0);
+        this(FrameTable.EMPTY);
     }
 
 
-    private Animation(ArrayList frames, long totalDuration) {
+    /**
+        Creates a new Animation that plays the frames of the
+        specified FrameTable.
+    */
+    public Animation(FrameTable frames) {
         this.frames = frames;
-        this.totalDuration = totalDuration;
         start();
     }
 
 
     /**
-        Creates a duplicate of this animation. The list of frames
-        are shared between the two Animations, but each Animation
+        Creates a duplicate of this animation. The frames are
+        shared between the two Animations, but each Animation
         can be animated independently.
     */
     public Object clone() {
-        return new Animation(frames, totalDuration);
+        return new Animation(frames);
     }
 
 
@@ -44,18 +51,34 @@ public class Animation {
         Adds an image to the animation with the specified
         duration (time to display the image).
     */
-    public synchronized void addFrame(Image image,
-        long duration)
-    {
-        totalDuration += duration;
-        frames.add(new AnimFrame(image, totalDuration));
+    public void addFrame(Image image, long duration) {
+        addFrame(new ImageRegion(image), duration);
+    }
+
+
+    /**
+        Adds a region of an image (like a frame in a
+        TextureAtlas) to the animation with the specified
+        duration. Clones made before the frame was added don't
+        get the new frame.
+    */
+    public void addFrame(ImageRegion region, long duration) {
+        frames = frames.withFrame(region, duration);
+    }
+
+
+    /**
+        Gets the FrameTable of this animation's frames.
+    */
+    public FrameTable getFrames() {
+        return frames;
     }
 
 
     /**
         Starts this animation over from the beginning.
     */
-    public synchronized void start() {
+    public void start() {
         animTime = 0;
         currFrameIndex = 0;
     }
@@ -65,49 +88,52 @@ public class Animation {
         Updates this animation's current image (frame), if
         neccesary.
     */
-    public synchronized void update(long elapsedTime) {
-        if (frames.size() > 1) {
+    public void update(long elapsedTime) {
+        if (frames.getNumFrames() > 1) {
             animTime += elapsedTime;
 
+            long totalDuration = frames.getTotalDuration();
             if (animTime >= totalDuration) {
                 animTime = animTime % totalDuration;
-                currFrameIndex = 0;
-            }
-
-            while (animTime > getFrame(currFrameIndex).endTime) {
-                currFrameIndex++;
             }
+            currFrameIndex = frames.getFrameIndex(animTime,
+                currFrameIndex);
         }
     }
 
 
     /**
-        Gets this Animation's current image. Returns null if this
-        animation has no images.
+        Returns true if update() must be called for this
+        animation to change frames.
     */
-    public synchronized Image getImage() {
-        if (frames.size() == 0) {
-            return null;
-        }
-        else {
-            return getFrame(currFrameIndex).image;
-        }
+    public boolean needsUpdate() {
+        return frames.getNumFrames() > 1;
     }
 
 
-    private AnimFrame getFrame(int i) {
-        return (AnimFrame)frames.get(i);
+    /**
+        Gets this Animation's current image (frame). If the frame
+        is part of a TextureAtlas, the image is the frame's region
+        of the atlas (see ImageRegion.toImage()); drawing the
+        region from getRegion() is cheaper. Returns null if this
+        animation has no images.
+    */
+    public Image getImage() {
+        ImageRegion region = getRegion();
+        return (region == null) ? null : region.toImage();
     }
 
 
-    private class AnimFrame {
-
-        Image image;
-        long endTime;
-
-        public AnimFrame(Image image, long endTime) {
-            this.image = image;
-            this.endTime = endTime;
+    /**
+        Gets this Animation's current frame. Returns null if this
+        animation has no images.
+    */
+    public ImageRegion getRegion() {
+        if (frames.getNumFrames() == 0) {
+            return null;
+        }
+        else {
+            return frames.getRegion(currFrameIndex);
         }
     }
 }
@@ -0,0 +1,28 @@
+package com.brackeen.javagamebook.graphics;
+
+/**
+    An AnimationClock is a shared game time, in milliseconds,
+    that ClockedAnimations derive their current frame from. The
+    game advances the clock once per update, instead of updating
+    each animation.
+*/
+public class AnimationClock {
+
+    private long time;
+
+    /**
+        Advances this clock by the specified number of
+        milliseconds.
+    */
+    public void advance(long elapsedTime) {
+        time += elapsedTime;
+    }
+
+
+    /**
+        Gets the time of this clock, in milliseconds.
+    */
+    public long getTime() {
+        return time;
+    }
+}
@@ -0,0 +1,113 @@
+package com.brackeen.javagamebook.graphics;
+
+/**
+    A ClockedAnimation is a looping Animation whose current frame
+    is computed when it's asked for, from an AnimationClock and a
+    phase offset, rather than kept up to date by update(). It's
+    meant for decorative sprites (like power ups) that only loop
+    their animation: a sprite that is never drawn costs nothing
+    per tick.
+    <p>The frame only depends on the clock's time and the phase,
+    so update() and start() do nothing. Clones share the
+    FrameTable and the clock, and each can be given its own
+    phase with setPhase(), so Sprites of the same type don't all
+    animate in step.
+*/
+public class ClockedAnimation extends Animation {
+
+    private AnimationClock clock;
+    private long phase;
+    // the last frame found, checked first next time. It only
+    // speeds up the search; it doesn't change the frame found.
+    private int frameHint;
+
+    /**
+        Creates a new ClockedAnimation that plays the specified
+        frames in step with the clock.
+    */
+    public ClockedAnimation(FrameTable frames, AnimationClock clock) {
+        this(frames, clock, 0);
+    }
+
+
+    /**
+        Creates a new ClockedAnimation that plays the specified
+        frames, phase milliseconds ahead of the clock.
+    */
+    public ClockedAnimation(FrameTable frames, AnimationClock clock,
+        long phase)
+    {
+        super(frames);
+        this.clock = clock;
+        this.phase = phase;
+    }
+
+
+    /**
+        Creates a ClockedAnimation with the same frames, clock,
+        and phase.
+    */
+    public Object clone() {
+        return new ClockedAnimation(getFrames(), clock, phase);
+    }
+
+
+    /**
+        Sets how many milliseconds ahead of the clock this
+        animation plays.
+    */
+    public void setPhase(long phase) {
+        this.phase = phase;
+    }
+
+
+    public long getPhase() {
+        return phase;
+    }
+
+
+    /**
+        Does nothing; the frame is derived from the clock.
+    */
+    public void start() {
+        // do nothing
+    }
+
+
+    /**
+        Does nothing; the frame is derived from the clock.
+    */
+    public void update(long elapsedTime) {
+        // do nothing
+    }
+
+
+    /**
+        Returns false, since the frame is derived from the clock.
+    */
+    public boolean needsUpdate() {
+        return false;
+    }
+
+
+    /**
+        Gets the frame shown at the clock's current time.
+    */
+    public ImageRegion getRegion() {
+        FrameTable frames = getFrames();
+        int numFrames = frames.getNumFrames();
+        if (numFrames == 0) {
+            return null;
+        }
+        if (numFrames == 1) {
+            return frames.getRegion(0);
+        }
+        long totalDuration = frames.getTotalDuration();
+        long time = (clock.getTime() + phase) % totalDuration;
+        if (time < 0) {
+            time += totalDuration;
+        }
+        frameHint = frames.getFrameIndex(time, frameHint);
+        return frames.getRegion(frameHint);
+    }
+}
@@ -0,0 +1,112 @@
+package com.brackeen.javagamebook.graphics;
+
+/**
+    A FrameTable is the immutable list of frames of an Animation:
+    each frame's ImageRegion, and the time (from the start of the
+    animation) at which the frame ends. Since a FrameTable never
+    changes, it's shared by an Animation and all its clones
+    without locking. Adding a frame creates a new FrameTable.
+*/
+public final class FrameTable {
+
+    /**
+        A FrameTable with no frames.
+    */
+    public static final FrameTable EMPTY =
+        new FrameTable(new ImageRegion[0], new long[0]);
+
+    private final ImageRegion[] regions;
+    private final long[] endTimes;
+
+    private FrameTable(ImageRegion[] regions, long[] endTimes) {
+        this.regions = regions;
+        this.endTimes = endTimes;
+    }
+
+
+    /**
+        Creates a new FrameTable with the frames of this table,
+        followed by a frame of the specified region and duration.
+    */
+    public FrameTable withFrame(ImageRegion region, long duration) {
+        int n = regions.length;
+        ImageRegion[] newRegions = new ImageRegion[n + 1];
+        long[] newEndTimes = new long[n + 1];
+        System.arraycopy(regions, 0, newRegions, 0, n);
+        System.arraycopy(endTimes, 0, newEndTimes, 0, n);
+        newRegions[n] = region;
+        newEndTimes[n] = getTotalDuration() + duration;
+        return new FrameTable(newRegions, newEndTimes);
+    }
+
+
+    /**
+        Gets the number of frames.
+    */
+    public int getNumFrames() {
+        return regions.length;
+    }
+
+
+    /**
+        Gets the total duration of all frames.
+    */
+    public long getTotalDuration() {
+        return (endTimes.length == 0) ? 0 :
+            endTimes[endTimes.length - 1];
+    }
+
+
+    /**
+        Gets the ImageRegion of a frame.
+    */
+    public ImageRegion getRegion(int frame) {
+        return regions[frame];
+    }
+
+
+    /**
+        Gets the time at which a frame ends.
+    */
+    public long getEndTime(int frame) {
+        return endTimes[frame];
+    }
+
+
+    /**
+        Gets the frame shown at the specified time, which should
+        be from 0 to the total duration. A frame is shown up to
+        and including its end time. The hint is a frame to check
+        first (usually the last frame found); if neither it nor
+        the frame after it is shown at the time, the frame is
+        found with a binary search.
+    */
+    public int getFrameIndex(long time, int hint) {
+        int n = endTimes.length;
+        if (hint >= 0 && hint < n && time <= endTimes[hint] &&
+            (hint == 0 || time > endTimes[hint - 1]))
+        {
+            return hint;
+        }
+        int next = hint + 1;
+        if (next > 0 && next < n && time <= endTimes[next] &&
+            time > endTimes[hint])
+        {
+            return next;
+        }
+
+        // find the first frame that ends at or after the time
+        int low = 0;
+        int high = n - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (endTimes[mid] < time) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
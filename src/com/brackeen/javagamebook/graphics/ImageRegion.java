@@ -0,0 +1,113 @@
+package com.brackeen.javagamebook.graphics;
+
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+
+/**
+    An ImageRegion is a rectangular part of an Image, like one
+    frame in a TextureAtlas. Drawing a region copies only that
+    part of the Image, so many regions can share one Image.
+*/
+public class ImageRegion {
+
+    private Image image;
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+    // this region as an Image of its own, made when first needed
+    private Image regionImage;
+
+    /**
+        Creates a new ImageRegion covering an entire Image.
+    */
+    public ImageRegion(Image image) {
+        this(image, 0, 0, image.getWidth(null), image.getHeight(null));
+    }
+
+
+    /**
+        Creates a new ImageRegion covering the specified rectangle
+        of an Image.
+    */
+    public ImageRegion(Image image, int x, int y, int width,
+        int height)
+    {
+        this.image = image;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+
+    /**
+        Gets the Image this region is part of.
+    */
+    public Image getImage() {
+        return image;
+    }
+
+
+    /**
+        Gets this region as an Image of its own, the size of the
+        region. If the region covers its whole Image, that Image
+        is returned. Otherwise, the returned Image shares the
+        pixels of a BufferedImage, or is a copy of the region of
+        other Images. The Image is made the first time it's
+        asked for; drawing with draw() is cheaper.
+    */
+    public Image toImage() {
+        if (regionImage == null) {
+            if (x == 0 && y == 0 && width == image.getWidth(null) &&
+                height == image.getHeight(null))
+            {
+                regionImage = image;
+            }
+            else if (image instanceof BufferedImage) {
+                regionImage = ((BufferedImage)image).getSubimage(
+                    x, y, width, height);
+            }
+            else {
+                BufferedImage copy = new BufferedImage(width, height,
+                    BufferedImage.TYPE_INT_ARGB);
+                Graphics g = copy.createGraphics();
+                draw(g, 0, 0);
+                g.dispose();
+                regionImage = copy;
+            }
+        }
+        return regionImage;
+    }
+
+
+    public int getX() {
+        return x;
+    }
+
+
+    public int getY() {
+        return y;
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+
+    public int getHeight() {
+        return height;
+    }
+
+
+    /**
+        Draws this region with its upper-left corner at the
+        specified location.
+    */
+    public void draw(Graphics g, int dx, int dy) {
+        g.drawImage(image, dx, dy, dx + width, dy + height,
+            x, y, x + width, y + height, null);
+    }
+}
@@ -11,6 +11,10 @@ public class Sprite {
     // velocity (pixels per millisecond)
     private float dx;
     private float dy;
+    // position saved by savePosition(), for interpolation
+    private float prevX;
+    private float prevY;
+    private boolean positionSaved;
 
     /**
         Creates a new Sprite object with the specified Animation.
@@ -29,6 +33,14 @@ public class Sprite {
         anim.update(elapsedTime);
     }
 
+    /**
+        Returns true if update() changes this Sprite: it's moving,
+        or its Animation needs updating.
+    */
+    public boolean needsUpdate() {
+        return dx != 0 || dy != 0 || anim.needsUpdate();
+    }
+
     /**
         Gets this Sprite's current x position.
     */
@@ -57,12 +69,57 @@ public class Sprite {
         this.y = y;
     }
 
+    /**
+        Saves this Sprite's current position. The saved position
+        is used by getRenderX() and getRenderY() to interpolate
+        between the saved and the current position.
+    */
+    public void savePosition() {
+        prevX = x;
+        prevY = y;
+        positionSaved = true;
+    }
+
+    /**
+        Forgets the position saved by savePosition(), so this
+        Sprite is drawn at its current position. Used when a
+        Sprite is reused.
+    */
+    public void clearSavedPosition() {
+        positionSaved = false;
+    }
+
+    /**
+        Gets the x position to draw this Sprite at, interpolated
+        between the saved position and the current position.
+        An alpha of 0 is the saved position, 1 is the current
+        position. Returns the current position if no position
+        was saved.
+    */
+    public float getRenderX(float alpha) {
+        if (!positionSaved) {
+            return x;
+        }
+        return prevX + (x - prevX) * alpha;
+    }
+
+    /**
+        Gets the y position to draw this Sprite at, interpolated
+        between the saved position and the current position.
+    */
+    public float getRenderY(float alpha) {
+        if (!positionSaved) {
+            return y;
+        }
+        return prevY + (y - prevY) * alpha;
+    }
+
     /**
         Gets this Sprite's width, based on the size of the
         current image.
     */
     public int getWidth() {
-        return anim.getImage().getWidth(null);
+        return anim.getRegion().getWidth();
     }
 
     /**
@@ -70,7 +127,7 @@ public class Sprite {
         current image.
     */
     public int getHeight() {
-        return anim.getImage().getHeight(null);
+        return anim.getRegion().getHeight();
     }
 
     /**
@@ -106,17 +163,24 @@ public class Sprite {
     }
 
     /**
-        Gets this Sprite's current image.
+        Gets this Sprite's current image. Drawing the region from
+        getRegion() is cheaper.
     */
     public Image getImage() {
         return anim.getImage();
     }
 
     /**
-        Clones this Sprite. Does not clone position or velocity
-        info.
+        Gets this Sprite's Animation.
+    */
+    public Animation getAnimation() {
+        return anim;
+    }
+
+    /**
+        Gets this Sprite's current frame.
     */
-    public Object clone() {
-        return new Sprite(anim);
+    public ImageRegion getRegion() {
+        return anim.getRegion();
     }
 }
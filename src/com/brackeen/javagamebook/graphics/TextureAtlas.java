@@ -0,0 +1,130 @@
+package com.brackeen.javagamebook.graphics;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+    A TextureAtlas packs many small Images into a few large
+    pages, so drawing doesn't switch between dozens of small
+    surfaces. Each Image added is copied into a page, and an
+    ImageRegion of the page is returned; the original Image is no
+    longer needed.
+    <p>Images are packed left to right on shelves (rows) as tall
+    as the tallest Image on the shelf. When a page is full, a new
+    page is started. Adding the same Image again returns the same
+    ImageRegion.
+*/
+public class TextureAtlas {
+
+    // space between images, in pixels
+    private static final int PADDING = 1;
+
+    private GraphicsConfiguration gc;
+    private int pageSize;
+    private ArrayList pages;
+    private IdentityHashMap regions;
+
+    // the current page and shelf
+    private BufferedImage page;
+    private int shelfX;
+    private int shelfY;
+    private int shelfHeight;
+
+    /**
+        Creates a new TextureAtlas with pages of the specified
+        size (in pixels). Pages are compatible with the specified
+        GraphicsConfiguration, which may be null.
+    */
+    public TextureAtlas(GraphicsConfiguration gc, int pageSize) {
+        this.gc = gc;
+        this.pageSize = pageSize;
+        pages = new ArrayList();
+        regions = new IdentityHashMap();
+    }
+
+
+    /**
+        Copies an Image into this atlas, and returns the region
+        of the page it was copied to. The Image must be loaded.
+    */
+    public ImageRegion add(Image image) {
+        ImageRegion region = (ImageRegion)regions.get(image);
+        if (region != null) {
+            return region;
+        }
+        int width = image.getWidth(null);
+        int height = image.getHeight(null);
+
+        if (width > pageSize || height > pageSize) {
+            // too big; give it a page of its own
+            BufferedImage bigPage = createPage(width, height);
+            region = copy(image, bigPage, 0, 0);
+        }
+        else {
+            if (page == null || shelfX + width > pageSize) {
+                // start a new shelf
+                shelfX = 0;
+                shelfY += shelfHeight;
+                shelfHeight = 0;
+            }
+            if (page == null || shelfY + height > pageSize) {
+                // start a new page
+                page = createPage(pageSize, pageSize);
+                shelfX = 0;
+                shelfY = 0;
+                shelfHeight = 0;
+            }
+            region = copy(image, page, shelfX, shelfY);
+            shelfX += width + PADDING;
+            shelfHeight = Math.max(shelfHeight, height + PADDING);
+        }
+        regions.put(image, region);
+        return region;
+    }
+
+
+    /**
+        Gets the number of pages in this atlas.
+    */
+    public int getNumPages() {
+        return pages.size();
+    }
+
+
+    /**
+        Gets the specified page of this atlas.
+    */
+    public Image getPage(int index) {
+        return (Image)pages.get(index);
+    }
+
+
+    private BufferedImage createPage(int width, int height) {
+        BufferedImage newPage;
+        if (gc == null) {
+            newPage = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        }
+        else {
+            newPage = gc.createCompatibleImage(width, height,
+                Transparency.TRANSLUCENT);
+        }
+        pages.add(newPage);
+        return newPage;
+    }
+
+
+    private ImageRegion copy(Image image, BufferedImage dest,
+        int x, int y)
+    {
+        Graphics2D g = dest.createGraphics();
+        // copy the alpha channel as-is
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, x, y, null);
+        g.dispose();
+        return new ImageRegion(dest, x, y, image.getWidth(null),
+            image.getHeight(null));
+    }
+}
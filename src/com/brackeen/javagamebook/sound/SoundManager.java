@@ -1,8 +1,11 @@
 package com.brackeen.javagamebook.sound;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import javax.sound.sampled.*;
 import javax.sound.midi.*;
+import com.brackeen.javagamebook.events.SoundPlayEvent;
+import com.brackeen.javagamebook.util.BakedCache;
 import com.brackeen.javagamebook.util.ThreadPool;
 import com.brackeen.javagamebook.util.LoopingByteInputStream;
 
@@ -26,6 +29,7 @@ public class SoundManager extends ThreadPool {
     private ThreadLocal localBuffer;
     private Object pausedLock;
     private boolean paused;
+    private BakedCache bakedCache;
 
     /**
         Creates a new SoundManager using the maximum number of
@@ -122,12 +126,41 @@ public class SoundManager extends ThreadPool {
     }
 
 
+    /**
+        Sets the BakedCache that sounds loaded from the file system
+        are kept in, already converted to the playback format, or
+        null (the default) to convert every sound when it's
+        loaded.
+    */
+    public void setBakedCache(BakedCache bakedCache) {
+        this.bakedCache = bakedCache;
+    }
+
+
     /**
         Loads a Sound from the file system. Returns null if an
-        error occurs.
+        error occurs. If there is a BakedCache, the converted
+        samples are read from it, or stored in it if they
+        weren't cached.
     */
     public Sound getSound(String filename) {
-        return getSound(getAudioInputStream(filename));
+        if (bakedCache == null) {
+            return getSound(getAudioInputStream(filename));
+        }
+        File file = new File(filename);
+        String format = playbackFormat.toString();
+        ByteBuffer buffer = bakedCache.get(file, format);
+        if (buffer != null) {
+            byte[] samples = new byte[buffer.remaining()];
+            buffer.get(samples);
+            return new Sound(samples);
+        }
+        Sound sound = getSound(getAudioInputStream(filename));
+        if (sound != null) {
+            bakedCache.put(file, format,
+                ByteBuffer.wrap(sound.getSamples()));
+        }
+        return sound;
     }
 
 
@@ -265,7 +298,7 @@ public class SoundManager extends ThreadPool {
             if (filter != null) {
                 is = new FilteredSoundStream(is, filter);
             }
-            runTask(new SoundPlayer(is));
+            runTask(new SoundPlayer(is, filter != null));
         }
         return is;
     }
@@ -331,15 +364,24 @@ public class SoundManager extends ThreadPool {
         The SoundPlayer class is a task for the PooledThreads to
         run. It receives the threads's Line and byte buffer from
         the ThreadLocal variables and plays a sound from an
-        InputStream.
+        InputStream. A SoundPlayEvent is recorded for each sound
+        played.
         <p>This class only works when called from a PooledThread.
     */
     protected class SoundPlayer implements Runnable {
 
         private InputStream source;
+        private boolean filtered;
+        private long requestTime;
 
         public SoundPlayer(InputStream source) {
+            this(source, false);
+        }
+
+        public SoundPlayer(InputStream source, boolean filtered) {
             this.source = source;
+            this.filtered = filtered;
+            requestTime = System.nanoTime();
         }
 
         public void run() {
@@ -351,6 +393,11 @@ public class SoundManager extends ThreadPool {
                 return;
             }
 
+            SoundPlayEvent event = new SoundPlayEvent();
+            event.begin();
+            event.queueDelay = System.nanoTime() - requestTime;
+            event.filtered = filtered;
+
             // copy data to the line
             try {
                 int numBytesRead = 0;
@@ -370,13 +417,17 @@ public class SoundManager extends ThreadPool {
                     numBytesRead =
                         source.read(buffer, 0, buffer.length);
                     if (numBytesRead != -1) {
+                        long writeStart = System.nanoTime();
                         line.write(buffer, 0, numBytesRead);
+                        event.writeTime += System.nanoTime() - writeStart;
+                        event.bytes += numBytesRead;
                     }
                 }
             }
             catch (IOException ex) {
                 ex.printStackTrace();
             }
+            event.commit();
 
         }
     }
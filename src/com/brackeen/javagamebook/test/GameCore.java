@@ -1,9 +1,11 @@
 package com.brackeen.javagamebook.test;
 
 import java.awt.*;
+import java.util.concurrent.locks.LockSupport;
 import javax.swing.ImageIcon;
 
 import com.brackeen.javagamebook.graphics.ScreenManager;
+import com.brackeen.javagamebook.util.FrameProfiler;
 
 /**
     Simple abstract class used for testing. Subclasses should
@@ -13,6 +15,22 @@ public abstract class GameCore {
 
     protected static final int FONT_SIZE = 24;
 
+    /**
+        The simulation step, in milliseconds, used when the
+        fixed time step game loop is enabled.
+    */
+    protected static final long SIM_STEP = 10;
+
+    // maximum number of simulation steps run to catch up before
+    // drawing a frame. Time beyond this is dropped.
+    private static final int MAX_CATCH_UP_STEPS = 5;
+
+    // when waiting for the next frame, spin (rather than park)
+    // for the last millisecond
+    private static final long SPIN_NANOS = 1000000;
+
+    private static final int DEFAULT_TARGET_FPS = 60;
+
     private static final DisplayMode POSSIBLE_MODES[] = {
         new DisplayMode(800, 600, 16, 0),
         new DisplayMode(800, 600, 32, 0),
@@ -28,6 +46,13 @@ public abstract class GameCore {
     private boolean isRunning;
     protected ScreenManager screen;
 
+    private boolean fixedTimestep;
+    private int targetFps = DEFAULT_TARGET_FPS;
+    private float renderAlpha = 1;
+
+    private FrameProfiler profiler;
+    private int presentPhase;
+
 
     /**
         Signals the game loop that it's time to quit
@@ -103,10 +128,89 @@ public abstract class GameCore {
     }
 
 
+    /**
+        Sets whether the game loop uses a fixed simulation step.
+        If true, update() is always called with SIM_STEP
+        milliseconds, the game is drawn at most getTargetFps()
+        times a second, and sprites can be drawn at positions
+        interpolated between the last two steps (see
+        getRenderAlpha()). If false (the default), update() is
+        called once per frame with the actual elapsed time and
+        the loop runs as fast as possible.
+    */
+    public void setFixedTimestep(boolean fixedTimestep) {
+        this.fixedTimestep = fixedTimestep;
+    }
+
+
+    /**
+        Checks if the game loop uses a fixed simulation step.
+    */
+    public boolean isFixedTimestep() {
+        return fixedTimestep;
+    }
+
+
+    /**
+        Sets the target number of frames drawn per second when
+        using the fixed time step game loop. Use 0 to draw as
+        many frames as possible.
+    */
+    public void setTargetFps(int targetFps) {
+        this.targetFps = targetFps;
+    }
+
+
+    /**
+        Gets the target number of frames drawn per second.
+    */
+    public int getTargetFps() {
+        return targetFps;
+    }
+
+
+    /**
+        Gets how far (from 0 to 1) the current frame is between
+        the last simulation step and the next one. Subclasses
+        can use this in draw() to interpolate positions. Always
+        1 if the fixed time step game loop isn't used.
+    */
+    public float getRenderAlpha() {
+        return renderAlpha;
+    }
+
+
+    /**
+        Sets the FrameProfiler that the game loop ends each frame
+        with. The time spent showing each frame (in
+        ScreenManager.update()) is counted in the specified
+        phase. Subclasses time the other phases.
+    */
+    public void setProfiler(FrameProfiler profiler,
+        int presentPhase)
+    {
+        this.profiler = profiler;
+        this.presentPhase = presentPhase;
+    }
+
+
+    /**
+        Gets the FrameProfiler, or null if there isn't one.
+    */
+    public FrameProfiler getProfiler() {
+        return profiler;
+    }
+
+
     /**
         Runs through the game loop until stop() is called.
     */
     public void gameLoop() {
+        if (fixedTimestep) {
+            fixedTimestepLoop();
+            return;
+        }
+
         long startTime = System.currentTimeMillis();
         long currTime = startTime;
 
@@ -122,7 +226,7 @@ public abstract class GameCore {
             Graphics2D g = screen.getGraphics();
             draw(g);
             g.dispose();
-            screen.update();
+            present();
 
             // don't take a nap! run as fast as possible
             /*try {
@@ -133,6 +237,109 @@ public abstract class GameCore {
     }
 
 
+    /**
+        Runs through the game loop with a fixed simulation step
+        until stop() is called. Elapsed time is accumulated, and
+        update() is called once for each SIM_STEP milliseconds
+        of accumulated time. The thread parks between frames to
+        keep the frame rate near the target.
+    */
+    private void fixedTimestepLoop() {
+        long stepNanos = SIM_STEP * 1000000;
+        long maxAccumulated = MAX_CATCH_UP_STEPS * stepNanos;
+        long accumulated = 0;
+        long currTime = System.nanoTime();
+        long nextFrameTime = currTime;
+
+        while (isRunning) {
+            long now = System.nanoTime();
+            accumulated += now - currTime;
+            currTime = now;
+
+            // don't try to catch up after a long pause
+            if (accumulated > maxAccumulated) {
+                accumulated = maxAccumulated;
+            }
+
+            // update
+            while (accumulated >= stepNanos) {
+                saveRenderState();
+                update(SIM_STEP);
+                accumulated -= stepNanos;
+            }
+            renderAlpha = (float)accumulated / stepNanos;
+
+            // draw the screen
+            Graphics2D g = screen.getGraphics();
+            draw(g);
+            g.dispose();
+            present();
+
+            // wait for the next frame
+            if (targetFps > 0) {
+                nextFrameTime += 1000000000L / targetFps;
+                long behind = System.nanoTime() - nextFrameTime;
+                if (behind > 0) {
+                    // running late; don't try to catch up frames
+                    nextFrameTime += behind;
+                }
+                else {
+                    waitUntil(nextFrameTime);
+                }
+            }
+        }
+        renderAlpha = 1;
+    }
+
+
+    /**
+        Shows the drawn frame on the screen, and ends the frame
+        for the FrameProfiler, if any.
+    */
+    private void present() {
+        if (profiler == null) {
+            screen.update();
+            return;
+        }
+        profiler.start(presentPhase);
+        screen.update();
+        profiler.end(presentPhase);
+        profiler.endFrame();
+    }
+
+
+    /**
+        Waits until System.nanoTime() reaches the specified time.
+        Parks the thread for most of the wait and spins for the
+        last bit, since parking isn't precise.
+    */
+    private void waitUntil(long time) {
+        while (true) {
+            long remaining = time - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            }
+            else {
+                Thread.yield();
+            }
+        }
+    }
+
+
+    /**
+        Called before each simulation step in the fixed time step
+        game loop. Subclasses should save the state needed to
+        interpolate between steps when drawing (for example,
+        sprite positions). This method does nothing by default.
+    */
+    protected void saveRenderState() {
+        // do nothing
+    }
+
+
     /**
         Updates the state of the game/animation based on the
         amount of elapsed time that has passed.
@@ -0,0 +1,89 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.tilegame.sprites.Bullet;
+
+/**
+    The BulletPool class keeps a fixed number of reusable Bullets,
+    so firing a Bullet doesn't create any objects. Bullets are
+    created with a SpriteFactory when the pool is created. If all
+    Bullets are in use, a new Bullet is created and counted as an
+    allocation; at most the pool's capacity of Bullets are kept
+    when they are freed.
+*/
+public class BulletPool {
+
+    private SpriteFactory factory;
+    private Bullet[] free;
+    private int numFree;
+    private long allocationCount;
+
+    /**
+        Creates a new BulletPool with the specified capacity,
+        filled with Bullets created by the specified factory.
+    */
+    public BulletPool(SpriteFactory factory, int capacity) {
+        this.factory = factory;
+        free = new Bullet[capacity];
+        for (int i=0; i<capacity; i++) {
+            free[i] = (Bullet)factory.create();
+        }
+        numFree = capacity;
+    }
+
+
+    /**
+        Gets an unused Bullet, reset to its initial state. If no
+        Bullets are free, a new one is created.
+    */
+    public Bullet obtain() {
+        Bullet bullet;
+        if (numFree > 0) {
+            numFree--;
+            bullet = free[numFree];
+            free[numFree] = null;
+        }
+        else {
+            bullet = (Bullet)factory.create();
+            allocationCount++;
+        }
+        bullet.reset();
+        return bullet;
+    }
+
+
+    /**
+        Returns a Bullet to this pool. The Bullet should no longer
+        be used.
+    */
+    public void free(Bullet bullet) {
+        if (numFree < free.length) {
+            free[numFree] = bullet;
+            numFree++;
+        }
+    }
+
+
+    /**
+        Gets the number of free Bullets.
+    */
+    public int getNumFree() {
+        return numFree;
+    }
+
+
+    /**
+        Gets the capacity of this pool.
+    */
+    public int getCapacity() {
+        return free.length;
+    }
+
+
+    /**
+        Gets the number of Bullets created because the pool was
+        empty, since this pool was created.
+    */
+    public long getAllocationCount() {
+        return allocationCount;
+    }
+}
@@ -0,0 +1,21 @@
+package com.brackeen.javagamebook.tilegame;
+
+/**
+    A ChunkLoader fills in the tiles of a TileMap one chunk
+    (TileMap.CHUNK_WIDTH columns) at a time, so large maps don't
+    have to be kept in memory all at once.
+    @see TileMap
+*/
+public interface ChunkLoader {
+
+    /**
+        Loads the tiles of the specified chunk, which covers
+        columns chunk * TileMap.CHUNK_WIDTH to
+        (chunk + 1) * TileMap.CHUNK_WIDTH - 1, by calling
+        map.setTileId(). A chunk is loaded again if it is needed
+        after it was evicted; the map's Sprites should only be
+        added the first time a chunk is loaded (firstLoad is
+        true).
+    */
+    public void loadChunk(TileMap map, int chunk, boolean firstLoad);
+}
@@ -2,17 +2,24 @@ package com.brackeen.javagamebook.tilegame;
 
 import java.awt.*;
 import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.sound.midi.Sequence;
 import javax.sound.midi.Sequencer;
 import javax.sound.sampled.AudioFormat;
 
+import com.brackeen.javagamebook.events.GameTickEvent;
 import com.brackeen.javagamebook.graphics.*;
 import com.brackeen.javagamebook.sound.*;
 import com.brackeen.javagamebook.input.*;
 import com.brackeen.javagamebook.test.GameCore;
 import com.brackeen.javagamebook.tilegame.sprites.*;
+import com.brackeen.javagamebook.util.BakedCache;
+import com.brackeen.javagamebook.util.FrameProfiler;
 
 /**
     GameManager manages all parts of the game.
@@ -35,7 +42,50 @@ public class GameManager extends GameCore {
 
     public static final float GRAVITY = 0.002f;
 
+    // shots the player can fire in a burst before reloading
+    private static final int MAX_BURST = 10;
+    // time, in milliseconds, a Star makes the player invincible
+    private static final int INVINCIBLE_TIME = 5000;
+
+    private static final int HUD_HEIGHT = 120;
+
+    // size of the view when running without a display
+    private static final int DEFAULT_VIEW_WIDTH = 800;
+    private static final int DEFAULT_VIEW_HEIGHT = 600;
+
+    // distance, in tiles, from the center of the view within
+    // which sprites are updated
+    private static final int DEFAULT_ACTIVE_RADIUS = 16;
+
+    // phases of a frame timed by the FrameProfiler. Collision
+    // checks are also counted in the creature and bullet phases
+    public static final int PHASE_INPUT = 0;
+    public static final int PHASE_CREATURES = 1;
+    public static final int PHASE_BULLETS = 2;
+    public static final int PHASE_COLLISION = 3;
+    public static final int PHASE_TILES = 4;
+    public static final int PHASE_SPRITES = 5;
+    public static final int PHASE_HUD = 6;
+    public static final int PHASE_PRESENT = 7;
+    private static final String[] PHASE_NAMES = {
+        "input", "creatures", "bullets", "collision",
+        "tiles", "sprites", "hud", "present"
+    };
+    // number of frames of phase times kept for the overlay
+    private static final int PROFILER_HISTORY = 300;
+
     private Point pointCache = new Point();
+    // farthest any bullet moved in the last update
+    private int maxBulletTravel;
+    private ArrayList nearbyCache = new ArrayList();
+    private long bulletAllocations;
+    private int collisionChecks;
+    private long lastTransitionTime;
+    private int viewWidth = DEFAULT_VIEW_WIDTH;
+    private int viewHeight = DEFAULT_VIEW_HEIGHT;
+    private int activeRadius = DEFAULT_ACTIVE_RADIUS;
+    private int activeSpriteCount;
+    private ArrayList activeCache = new ArrayList();
     private TileMap map;
     private MidiPlayer midiPlayer;
     private SoundManager soundManager;
@@ -44,6 +94,9 @@ public class GameManager extends GameCore {
     private Sound boopSound;
     private InputManager inputManager;
     private TileMapRenderer renderer;
+    private Hud hud;
+    private FrameProfiler profiler;
+    private ProfilerOverlay profilerOverlay;
 
     private GameAction moveLeft;
     private GameAction moveRight;
@@ -51,6 +104,7 @@ public class GameManager extends GameCore {
     private GameAction exit;
     private GameAction shoot;
     private GameAction down;
+    private GameAction toggleProfiler;
     
     // My variables
     private float prevX = -1;
@@ -70,18 +124,47 @@ public class GameManager extends GameCore {
 
     public void init(String gamefile) {
         super.init(gamefile);
+        setFixedTimestep(true);
         file = gamefile;
+        initProfiler();
         // set up input manager
         initInput();
 
-        // start resource manager
-        resourceManager = new ResourceManager(
-        screen.getFullScreenWindow().getGraphicsConfiguration());
+        // start loading resources in the background
+        long startTime = System.nanoTime();
+        Future resources = ResourceManager.loadInBackground(
+            screen.getFullScreenWindow().getGraphicsConfiguration());
+        setViewSize(screen.getWidth(), screen.getHeight());
+
+        // load sounds while the images load
+        soundManager = new SoundManager(PLAYBACK_FORMAT);
+        soundManager.setBakedCache(BakedCache.getDefault());
+        prizeSound = soundManager.getSound("sounds/prize.wav");
+        boopSound = soundManager.getSound("sounds/boop2.wav");
 
-        // load resources
+        // set up music
+        midiPlayer = new MidiPlayer();
+        Sequence sequence =
+            midiPlayer.getSequence("sounds/music.midi");
+        System.out.println("GameManager: sound and music: " +
+            ((System.nanoTime() - startTime) / 1000000) + " ms");
+
+        // wait for the resources
+        try {
+            resourceManager = (ResourceManager)resources.get();
+        }
+        catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+        catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
         renderer = new TileMapRenderer();
         renderer.setBackground(
             resourceManager.loadImage("background.png"));
+        hud = createHud();
+        renderer.setProfiler(profiler, PHASE_TILES, PHASE_SPRITES);
+        profilerOverlay = new ProfilerOverlay(profiler);
 
         // load first map
         if (file == null){
@@ -90,38 +173,92 @@ public class GameManager extends GameCore {
         else{
         	map = resourceManager.loadFromFile(gamefile);
         }
-        
-        // load sounds
-        soundManager = new SoundManager(PLAYBACK_FORMAT);
-        prizeSound = soundManager.getSound("sounds/prize.wav");
-        boopSound = soundManager.getSound("sounds/boop2.wav");
+        resourceManager.prefetchNextMap();
+        System.out.println("GameManager: startup: " +
+            ((System.nanoTime() - startTime) / 1000000) + " ms");
 
         // start music
-        midiPlayer = new MidiPlayer();
-        Sequence sequence =
-            midiPlayer.getSequence("sounds/music.midi");
         midiPlayer.play(sequence, true);
         toggleDrumPlayback();
     }
 
 
+    /**
+        Initializes the game without a display, input devices,
+        sound, or music. Images are stubbed, so only the game
+        logic runs. Used for running the simulation with
+        HeadlessSimulation.
+    */
+    public void initHeadless(String gamefile) {
+        file = gamefile;
+        createGameActions();
+        initProfiler();
+
+        resourceManager = new ResourceManager(null, true);
+
+        // load first map
+        if (file == null){
+        	map = resourceManager.loadNextMap();
+        }
+        else{
+        	map = resourceManager.loadFromFile(gamefile);
+        }
+        resourceManager.prefetchNextMap();
+    }
+
+
+    /**
+        Creates the FrameProfiler. Profiling is off until the
+        overlay is shown, unless the "tilegame.profileFile"
+        system property names a file to dump the results to.
+    */
+    private void initProfiler() {
+        profiler = new FrameProfiler(PHASE_NAMES, PROFILER_HISTORY);
+        setProfiler(profiler, PHASE_PRESENT);
+        String dumpFile = System.getProperty("tilegame.profileFile");
+        boolean dumping = false;
+        if (dumpFile != null) {
+            try {
+                profiler.setDumpFile(dumpFile);
+                dumping = true;
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        profiler.setEnabled(dumping);
+    }
+
+
     /**
         Closes any resources used by the GameManager.
     */
     public void stop() {
         super.stop();
-        midiPlayer.close();
-        soundManager.close();
+        profiler.closeDumpFile();
+        if (midiPlayer != null) {
+            midiPlayer.close();
+        }
+        if (soundManager != null) {
+            soundManager.close();
+        }
     }
 
 
-    private void initInput() {
+    private void createGameActions() {
         moveLeft = new GameAction("moveLeft");
         moveRight = new GameAction("moveRight");
         jump = new GameAction("jump",GameAction.DETECT_INITAL_PRESS_ONLY);
         exit = new GameAction("exit",GameAction.DETECT_INITAL_PRESS_ONLY);
         shoot = new GameAction("shoot");
         down = new GameAction("down", GameAction.DETECT_INITAL_PRESS_ONLY);
+        toggleProfiler = new GameAction("toggleProfiler",
+            GameAction.DETECT_INITAL_PRESS_ONLY);
+    }
+
+
+    private void initInput() {
+        createGameActions();
 
         inputManager = new InputManager(screen.getFullScreenWindow());
         inputManager.setCursor(InputManager.INVISIBLE_CURSOR);
@@ -133,6 +270,7 @@ public class GameManager extends GameCore {
         inputManager.mapToKey(exit, KeyEvent.VK_ESCAPE);
         inputManager.mapToKey(shoot, KeyEvent.VK_S);
         inputManager.mapToKey(down, KeyEvent.VK_DOWN);
+        inputManager.mapToKey(toggleProfiler, KeyEvent.VK_F3);
     }
 
 
@@ -141,6 +279,9 @@ public class GameManager extends GameCore {
         if (exit.isPressed()) {
             stop();
         }
+        if (toggleProfiler.isPressed()) {
+            toggleProfilerOverlay();
+        }
 
         Player player = (Player)map.getPlayer();
         if (player.isAlive()) {
@@ -161,7 +302,7 @@ public class GameManager extends GameCore {
             }
             
             if (shoot.isPressed() && !gas) {
-            	if (player.bullets >= 10){
+            	if (player.bullets >= MAX_BURST){
             		player.canShoot = false;
             	}
             	
@@ -227,22 +368,102 @@ public class GameManager extends GameCore {
     }
     
     public void playerShoot(Player player){
-    	Bullet bullet = (Bullet) resourceManager.bulletSprite.clone();
+    	Bullet bullet = map.obtainBullet();
     	bullet.setX(player.getX() + 100*player.direction);
     	bullet.setY(player.getY());
     	bullet.direction = player.direction;
-    	
-    	int x = TileMapRenderer.pixelsToTiles(player.getX() + 100 * player.direction);
-		int y = TileMapRenderer.pixelsToTiles(player.getY());
-		resourceManager.addBullet(map, bullet, x, y, player.direction);
-    	soundManager.play(boopSound);
+    	bullet.markStart();
+    	map.addBullet(bullet);
+    	playSound(boopSound, null);
+    }
+
+
+    /**
+        Saves the position of the player, the bullets, and the
+        Sprites within the active radius so they can be drawn
+        between simulation steps. Sprites outside the active
+        radius aren't updated, so they don't move and their
+        positions don't need saving.
+    */
+    protected void saveRenderState() {
+        map.getPlayer().savePosition();
+        findActiveSprites();
+        for (int i=0; i<activeCache.size(); i++) {
+            ((Sprite)activeCache.get(i)).savePosition();
+        }
+        activeCache.clear();
+        Iterator i = map.getBullets();
+        while (i.hasNext()) {
+            ((Sprite)i.next()).savePosition();
+        }
     }
 
 
     public void draw(Graphics2D g) {
         renderer.draw(g, map,
-            screen.getWidth(), screen.getHeight());
-        g.drawString("Hello World!", screen.getWidth(), screen.getHeight());
+            screen.getWidth(), screen.getHeight(),
+            getRenderAlpha());
+        profiler.start(PHASE_HUD);
+        hud.draw(g);
+        profiler.end(PHASE_HUD);
+        profilerOverlay.draw(g, screen.getWidth(), screen.getHeight());
+    }
+
+
+    /**
+        Shows or hides the frame time overlay. The FrameProfiler
+        runs while the overlay is shown (or while it's dumping to
+        a file).
+    */
+    private void toggleProfilerOverlay() {
+        boolean visible = !profilerOverlay.isVisible();
+        profilerOverlay.setVisible(visible);
+        profiler.setEnabled(visible ||
+            System.getProperty("tilegame.profileFile") != null);
+    }
+
+
+    /**
+        Creates the heads-up display: the player's health, score,
+        shots left in the current burst, and the time left being
+        invincible.
+    */
+    private Hud createHud() {
+        Hud hud = new Hud(screen.getWidth(), HUD_HEIGHT);
+        hud.addWidget(new Hud.TextWidget("Player Health: ", 70, 100,
+            Color.WHITE)
+        {
+            public int getValue() {
+                return ((Player)map.getPlayer()).getHealth();
+            }
+        });
+        hud.addWidget(new Hud.TextWidget("Score: ", 400, 100,
+            Color.WHITE)
+        {
+            public int getValue() {
+                return ((Player)map.getPlayer()).getScore();
+            }
+        });
+        hud.addWidget(new Hud.TextWidget("Shots: ", 70, 80,
+            Color.WHITE)
+        {
+            public int getValue() {
+                Player player = (Player)map.getPlayer();
+                return Math.max(MAX_BURST - player.bullets, 0);
+            }
+        });
+        hud.addWidget(new Hud.TextWidget("Invincible: ", 400, 80,
+            Color.YELLOW)
+        {
+            public int getValue() {
+                if (!inv) {
+                    return HIDDEN;
+                }
+                // seconds left, rounded up
+                return (int)(INVINCIBLE_TIME - invdT + 999) / 1000;
+            }
+        });
+        return hud;
     }
 
 
@@ -254,10 +475,21 @@ public class GameManager extends GameCore {
     }
 
 
+    /**
+        Sets the current map.
+    */
+    public void setMap(TileMap map) {
+        this.map = map;
+    }
+
+
     /**
         Turns on/off drum playback in the midi music (track 1).
     */
     public void toggleDrumPlayback() {
+        if (midiPlayer == null) {
+            return;
+        }
         Sequencer sequencer = midiPlayer.getSequencer();
         if (sequencer != null) {
             sequencer.setTrackMute(DRUM_TRACK,
@@ -266,18 +498,38 @@ public class GameManager extends GameCore {
     }
 
 
+    /**
+        Plays a sound with an optional SoundFilter. Does nothing
+        if there is no SoundManager (headless mode).
+    */
+    private void playSound(Sound sound, SoundFilter filter) {
+        if (soundManager != null) {
+            soundManager.play(sound, filter, false);
+        }
+    }
+
+
     /**
         Gets the tile that a Sprites collides with. Only the
         Sprite's X or Y should be changed, not both. Returns null
         if no collision is detected.
+        <p>The whole path from the Sprite's current position to
+        the new position is swept, and the first tile hit in the
+        direction of movement is returned, so fast Sprites don't
+        pass through tiles. Since only one axis changes, moving
+        the Sprite against the edge of that tile puts it at the
+        point of contact.
     */
     public Point getTileCollision(Sprite sprite,
         float newX, float newY)
     {
-        float fromX = Math.min(sprite.getX(), newX);
-        float fromY = Math.min(sprite.getY(), newY);
-        float toX = Math.max(sprite.getX(), newX);
-        float toY = Math.max(sprite.getY(), newY);
+        collisionChecks++;
+        float oldX = sprite.getX();
+        float oldY = sprite.getY();
+        float fromX = Math.min(oldX, newX);
+        float fromY = Math.min(oldY, newY);
+        float toX = Math.max(oldX, newX);
+        float toY = Math.max(oldY, newY);
 
         // get the tile locations
         int fromTileX = TileMapRenderer.pixelsToTiles(fromX);
@@ -287,17 +539,138 @@ public class GameManager extends GameCore {
         int toTileY = TileMapRenderer.pixelsToTiles(
             toY + sprite.getHeight() - 1);
 
-        // check each tile for a collision
-        for (int x=fromTileX; x<=toTileX; x++) {
-            for (int y=fromTileY; y<=toTileY; y++) {
-                if (x < 0 || x >= map.getWidth() ||
-                    map.getTile(x, y) != null)
-                {
-                    // collision found, return the tile
-                    pointCache.setLocation(x, y);
-                    return pointCache;
-                }
+        float dx = newX - oldX;
+        float dy = newY - oldY;
+        Point tile;
+        if (dx < 0) {
+            tile = getTileCollisionLeft(
+                fromTileX, fromTileY, toTileX, toTileY);
+        }
+        else if (dx == 0 && dy != 0) {
+            tile = getTileCollisionVertical(
+                fromTileX, fromTileY, toTileX, toTileY, dy > 0);
+        }
+        else {
+            tile = getTileCollisionRight(
+                fromTileX, fromTileY, toTileX, toTileY);
+        }
+
+        return tile;
+    }
+
+
+    /**
+        Gets the leftmost solid tile in the area (topmost for
+        ties). Columns outside the map are solid.
+    */
+    private Point getTileCollisionRight(int fromTileX, int fromTileY,
+        int toTileX, int toTileY)
+    {
+        // columns left of the map are solid
+        if (fromTileX < 0) {
+            pointCache.setLocation(fromTileX, fromTileY);
+            return pointCache;
+        }
+
+        // test each row's span of columns with the solid tile
+        // bitset
+        int hitX = Integer.MAX_VALUE;
+        int hitY = 0;
+        for (int y=fromTileY; y<=toTileY; y++) {
+            int x = map.getFirstSolidTile(y, fromTileX,
+                Math.min(toTileX, hitX - 1));
+            if (x >= 0) {
+                hitX = x;
+                hitY = y;
+            }
+        }
+        if (hitX != Integer.MAX_VALUE) {
+            pointCache.setLocation(hitX, hitY);
+            return pointCache;
+        }
+
+        // columns right of the map are solid
+        if (toTileX >= map.getWidth()) {
+            pointCache.setLocation(
+                Math.max(fromTileX, map.getWidth()), fromTileY);
+            return pointCache;
+        }
+
+        // no collision found
+        return null;
+    }
+
+
+    /**
+        Gets the rightmost solid tile in the area (topmost for
+        ties). Columns outside the map are solid.
+    */
+    private Point getTileCollisionLeft(int fromTileX, int fromTileY,
+        int toTileX, int toTileY)
+    {
+        // columns right of the map are solid
+        if (toTileX >= map.getWidth()) {
+            pointCache.setLocation(toTileX, fromTileY);
+            return pointCache;
+        }
+
+        int hitX = Integer.MIN_VALUE;
+        int hitY = 0;
+        for (int y=fromTileY; y<=toTileY; y++) {
+            int x = map.getLastSolidTile(y,
+                Math.max(fromTileX, hitX + 1), toTileX);
+            if (x >= 0) {
+                hitX = x;
+                hitY = y;
+            }
+        }
+        if (hitX != Integer.MIN_VALUE) {
+            pointCache.setLocation(hitX, hitY);
+            return pointCache;
+        }
+
+        // columns left of the map are solid
+        if (fromTileX < 0) {
+            pointCache.setLocation(
+                Math.min(toTileX, -1), fromTileY);
+            return pointCache;
+        }
+
+        // no collision found
+        return null;
+    }
+
+
+    /**
+        Gets the first row with a solid tile in the area, from
+        the top if moving down or from the bottom if moving up.
+        Returns the leftmost solid tile in that row. Columns
+        outside the map are solid.
+    */
+    private Point getTileCollisionVertical(int fromTileX,
+        int fromTileY, int toTileX, int toTileY, boolean down)
+    {
+        // if some columns are outside the map, every row is solid
+        if (fromTileX < 0 || toTileX >= map.getWidth()) {
+            pointCache.setLocation(
+                (fromTileX < 0) ? fromTileX : map.getWidth(),
+                down ? fromTileY : toTileY);
+            return pointCache;
+        }
+
+        int step = down ? 1 : -1;
+        int y = down ? fromTileY : toTileY;
+        int lastY = down ? toTileY : fromTileY;
+        while (true) {
+            int x = map.getFirstSolidTile(y, fromTileX, toTileX);
+            if (x >= 0) {
+                pointCache.setLocation(x, y);
+                return pointCache;
             }
+            if (y == lastY) {
+                break;
+            }
+            y += step;
         }
 
         // no collision found
@@ -338,32 +711,244 @@ public class GameManager extends GameCore {
     }
 
 
+    /**
+        Gets the time when a moving Sprite first touches another
+        Sprite, as the moving Sprite moves in a straight line from
+        (fromX, fromY) to its current position. The other Sprite
+        is treated as not moving. Returns a time from 0 (at
+        fromX, fromY) to 1 (the current position), or -1 if the
+        Sprites don't touch. Like isCollision(), returns -1 if
+        the Sprites are the same or one is a dead Creature.
+    */
+    public float getSweptCollisionTime(Sprite moving, float fromX,
+        float fromY, Sprite other)
+    {
+        if (moving == other) {
+            return -1;
+        }
+        if (moving instanceof Creature &&
+            !((Creature)moving).isAlive())
+        {
+            return -1;
+        }
+        if (other instanceof Creature &&
+            !((Creature)other).isAlive())
+        {
+            return -1;
+        }
+
+        // sweep the moving box against the other box, one axis
+        // at a time (slab test)
+        float enter = 0;
+        float exit = 1;
+        float dx = moving.getX() - fromX;
+        float dy = moving.getY() - fromY;
+        float otherX = other.getX();
+        float otherY = other.getY();
+        int width = moving.getWidth();
+        int height = moving.getHeight();
+
+        if (dx == 0) {
+            if (fromX >= otherX + other.getWidth() ||
+                otherX >= fromX + width)
+            {
+                return -1;
+            }
+        }
+        else {
+            float t1 = (otherX - (fromX + width)) / dx;
+            float t2 = (otherX + other.getWidth() - fromX) / dx;
+            enter = Math.max(enter, Math.min(t1, t2));
+            exit = Math.min(exit, Math.max(t1, t2));
+        }
+
+        if (dy == 0) {
+            if (fromY >= otherY + other.getHeight() ||
+                otherY >= fromY + height)
+            {
+                return -1;
+            }
+        }
+        else {
+            float t1 = (otherY - (fromY + height)) / dy;
+            float t2 = (otherY + other.getHeight() - fromY) / dy;
+            enter = Math.max(enter, Math.min(t1, t2));
+            exit = Math.min(exit, Math.max(t1, t2));
+        }
+
+        return (enter < exit) ? enter : -1;
+    }
+
+
     /**
         Gets the Sprite that collides with the specified Sprite,
         or null if no Sprite collides with the specified Sprite.
     */
     public Sprite getSpriteCollision(Sprite sprite) {
-
-        // run through the list of Sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite otherSprite = (Sprite)i.next();
+        collisionChecks++;
+
+        // run through the list of nearby Sprites
+        ArrayList nearby = nearbyCache;
+        nearby.clear();
+        map.getSpritesNear(sprite, nearby);
+        for (int i=0; i<nearby.size(); i++) {
+            Sprite otherSprite = (Sprite)nearby.get(i);
             if (isCollision(sprite, otherSprite)) {
                 // collision found, return the Sprite
+                nearby.clear();
                 return otherSprite;
             }
         }
 
         // no collision found
+        nearby.clear();
         return null;
     }
 
 
     /**
         Updates Animation, position, and velocity of all Sprites
-        in the current map.
+        in the current map. A GameTickEvent is recorded for each
+        update.
     */
     public void update(long elapsedTime) {
+        GameTickEvent event = new GameTickEvent();
+        event.begin();
+        collisionChecks = 0;
+
+        BulletPool pool = resourceManager.getBulletPool();
+        long allocationCount = pool.getAllocationCount();
+        resourceManager.getAnimationClock().advance(elapsedTime);
+        updateMap(elapsedTime);
+        bulletAllocations = pool.getAllocationCount() - allocationCount;
+
+        if (event.shouldCommit()) {
+            event.step = elapsedTime;
+            event.activeSprites = activeSpriteCount;
+            event.sprites = map.getNumSprites();
+            event.bullets = map.getNumBullets();
+            event.collisionChecks = collisionChecks;
+            event.commit();
+        }
+    }
+
+
+    /**
+        Sets the size of the view (the screen), used to find
+        which creatures are on screen. The view is the size of
+        the screen after init(), or 800x600 after initHeadless().
+    */
+    public void setViewSize(int viewWidth, int viewHeight) {
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+    }
+
+
+    public int getViewWidth() {
+        return viewWidth;
+    }
+
+
+    public int getViewHeight() {
+        return viewHeight;
+    }
+
+
+    /**
+        Sets the active radius, in tiles. Only the Sprites within
+        this many tiles of the center of the view are updated;
+        the rest are frozen. The radius should be at least half
+        the width of the view, so Sprites on screen move.
+    */
+    public void setActiveRadius(int activeRadius) {
+        this.activeRadius = activeRadius;
+    }
+
+
+    public int getActiveRadius() {
+        return activeRadius;
+    }
+
+
+    /**
+        Gets the number of Sprites (not including the player)
+        updated in the last call to update().
+    */
+    public int getActiveSpriteCount() {
+        return activeSpriteCount;
+    }
+
+
+    /**
+        Finds the Sprites in the map within the active radius of
+        the center of the view and puts them in the activeCache
+        list.
+    */
+    private void findActiveSprites() {
+        int radius = TileMapRenderer.tilesToPixels(activeRadius);
+        int centerX = viewWidth / 2 -
+            TileMapRenderer.getOffsetX(map, viewWidth);
+        int centerY = viewHeight / 2 -
+            TileMapRenderer.getOffsetY(map, viewHeight);
+        // only look inside the map
+        int fromX = Math.max(centerX - radius, 0);
+        int fromY = Math.max(centerY - radius, 0);
+        int toX = Math.min(centerX + radius,
+            TileMapRenderer.tilesToPixels(map.getWidth()));
+        int toY = Math.min(centerY + radius,
+            TileMapRenderer.tilesToPixels(map.getHeight()));
+        activeCache.clear();
+        map.getSpritesNear(fromX, fromY, toX - fromX, toY - fromY,
+            activeCache);
+    }
+
+
+    /**
+        Wakes up the creatures that are on screen, so they start
+        moving. Only the Sprites near the screen are visited.
+    */
+    private void wakeUpCreatures() {
+        int offsetX = TileMapRenderer.getOffsetX(map, viewWidth);
+        int offsetY = TileMapRenderer.getOffsetY(map, viewHeight);
+        nearbyCache.clear();
+        map.getSpritesNear(-offsetX, -offsetY, viewWidth, viewHeight,
+            nearbyCache);
+        for (int i=0; i<nearbyCache.size(); i++) {
+            Sprite sprite = (Sprite)nearbyCache.get(i);
+            int x = Math.round(sprite.getX()) + offsetX;
+            int y = Math.round(sprite.getY()) + offsetY;
+            if (sprite instanceof Creature &&
+                x >= 0 && x < viewWidth && y >= 0 && y < viewHeight)
+            {
+                ((Creature)sprite).wakeUp();
+            }
+        }
+        nearbyCache.clear();
+    }
+
+
+    /**
+        Gets the number of Bullets created (rather than reused
+        from the BulletPool) during the last call to update().
+        This is zero in the steady state.
+    */
+    public long getBulletAllocations() {
+        return bulletAllocations;
+    }
+
+
+    /**
+        Gets the time, in nanoseconds, the last transition to the
+        next map took. The next map is prefetched in the
+        background while the current map is played, so this is
+        usually tiny (see ResourceManager.wasLastMapPrefetched()).
+    */
+    public long getLastTransitionTime() {
+        return lastTransitionTime;
+    }
+
+
+    private void updateMap(long elapsedTime) {
         //Creature player = (Creature)map.getPlayer();
         Player player = (Player) map.getPlayer();
         if (prevX == -1){
@@ -374,7 +959,7 @@ public class GameManager extends GameCore {
         //if (player.invincible){
         if (inv){
         	invdT += elapsedTime;
-        	if ((invdT > 5000) || (invX > 10)){
+        	if ((invdT > INVINCIBLE_TIME) || (invX > 10)){
         		inv = false;
         		invX = 0;
         		invT = 0;
@@ -420,6 +1005,7 @@ public class GameManager extends GameCore {
      
         // player is dead! start map over
         if (player.getState() == Creature.STATE_DYING) {
+            map.clearBullets();
             if (file == null){
             	map = resourceManager.reloadMap();
             }
@@ -430,36 +1016,60 @@ public class GameManager extends GameCore {
         }
 
         // get keyboard/mouse input
+        profiler.start(PHASE_INPUT);
         checkInput(elapsedTime);
+        profiler.end(PHASE_INPUT);
 
         // update player
+        profiler.start(PHASE_CREATURES);
         updateCreature(player, elapsedTime);
         player.update(elapsedTime);
 
-        // update other sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite sprite = (Sprite)i.next();
+        // wake up the creatures on screen
+        wakeUpCreatures();
+
+        // update the other sprites near the camera. Sprites
+        // farther away are frozen until the camera gets close
+        findActiveSprites();
+        for (int i=0; i<activeCache.size(); i++) {
+            Sprite sprite = (Sprite)activeCache.get(i);
             if (sprite instanceof Creature) {
                 Creature creature = (Creature)sprite;
                 if (creature.getState() == Creature.STATE_DEAD) {
-                    i.remove();
+                    map.removeSprite(creature);
+                    continue;
                 }
                 else {
                     updateCreature(creature, elapsedTime);
                 }
+                sprite.update(elapsedTime);
+            }
+            else if (sprite.needsUpdate()) {
+                // power ups with ClockedAnimations don't need
+                // updating
+                sprite.update(elapsedTime);
             }
-            sprite.update(elapsedTime);
         }
+        activeSpriteCount = activeCache.size();
+        activeCache.clear();
+        profiler.end(PHASE_CREATURES);
         
         // Bullet updates
+        profiler.start(PHASE_BULLETS);
+        float maxTravel = 0;
         Iterator j = map.getBullets();
         while (j.hasNext()){
         	Bullet b = (Bullet) j.next();
         	if (updateBullet(b, elapsedTime)){
         		j.remove();
         	}
+        	else {
+        		maxTravel = Math.max(maxTravel,
+        		    Math.abs(b.getX() - b.lastX));
+        	}
         }
+        maxBulletTravel = (int)Math.ceil(maxTravel);
+        profiler.end(PHASE_BULLETS);
         
     }
     
@@ -467,15 +1077,19 @@ public class GameManager extends GameCore {
         float dx = 0.8f * bullet.direction;
         float oldX = bullet.getX();
         float newX = oldX + dx * elapsedTime;
+        bullet.markStart();
         bullet.travel += Math.abs(newX - oldX);
         Player player = (Player) map.getPlayer();
         if (bullet.travel > 5*player.getWidth()){
         	return true;
         }
         
+        profiler.start(PHASE_COLLISION);
         Point tile =getTileCollision(bullet, newX, bullet.getY());
+        profiler.end(PHASE_COLLISION);
         if (tile == null) {
             bullet.setX(newX);
+            map.updateBullet(bullet);
             return false;
         }
         else {
@@ -510,8 +1124,10 @@ public class GameManager extends GameCore {
         float dx = creature.getVelocityX();
         float oldX = creature.getX();
         float newX = oldX + dx * elapsedTime;
+        profiler.start(PHASE_COLLISION);
         Point tile =
             getTileCollision(creature, newX, creature.getY());
+        profiler.end(PHASE_COLLISION);
         if (tile == null) {
             creature.setX(newX);
         }
@@ -528,15 +1144,20 @@ public class GameManager extends GameCore {
             }
             creature.collideHorizontal();
         }
+        map.updateSprite(creature);
         if (creature instanceof Player) {
+            profiler.start(PHASE_COLLISION);
             checkPlayerCollision((Player)creature, false);
+            profiler.end(PHASE_COLLISION);
         }
 
         // change y
         float dy = creature.getVelocityY();
         float oldY = creature.getY();
         float newY = oldY + dy * elapsedTime;
+        profiler.start(PHASE_COLLISION);
         tile = getTileCollision(creature, creature.getX(), newY);
+        profiler.end(PHASE_COLLISION);
         if (tile == null) {
             creature.setY(newY);
         }
@@ -553,12 +1174,17 @@ public class GameManager extends GameCore {
             }
             creature.collideVertical();
         }
+        map.updateSprite(creature);
         if (creature instanceof Player) {
             boolean canKill = (oldY < creature.getY());
+            profiler.start(PHASE_COLLISION);
             checkPlayerCollision((Player)creature, canKill);
+            profiler.end(PHASE_COLLISION);
         }
         if (creature instanceof Grub){
+            profiler.start(PHASE_COLLISION);
         	checkSpriteCollision(creature);
+            profiler.end(PHASE_COLLISION);
         	if (creature.getVelocityX() != 0 && deltaX != 0){
 	        	if (creature.dT > 600){
 	        		creatureShoot(creature);
@@ -570,7 +1196,9 @@ public class GameManager extends GameCore {
         	}
         }
         if (creature instanceof Fly){
+            profiler.start(PHASE_COLLISION);
         	checkSpriteCollision(creature);
+            profiler.end(PHASE_COLLISION);
         	if (creature.getVelocityX() != 0 && deltaX != 0){
 	        	if (creature.dT > 600){
 	        		creatureShoot(creature);
@@ -585,15 +1213,13 @@ public class GameManager extends GameCore {
     }
     
     public void creatureShoot(Creature creature){
-    	Bullet bullet = (Bullet) resourceManager.bulletSprite.clone();
+    	Bullet bullet = map.obtainBullet();
     	bullet.setX(creature.getX() + 65 * creature.direction);
     	bullet.setY(creature.getY());
     	bullet.direction = creature.direction;
     	bullet.fromPlayer = false;
-
-    	int x = TileMapRenderer.pixelsToTiles(creature.getX() + 65 * creature.direction);
-		int y = TileMapRenderer.pixelsToTiles(creature.getY());
-    	resourceManager.addBullet(map, bullet, x, y, creature.direction);
+    	bullet.markStart();
+    	map.addBullet(bullet);
     }
 
 
@@ -619,7 +1245,7 @@ public class GameManager extends GameCore {
         }
         else if (collisionSprite instanceof Creature) {
             Creature badguy = (Creature)collisionSprite;
-            soundManager.play(boopSound);
+            playSound(boopSound, null);
             badguy.setState(Creature.STATE_DYING);
 
             if (canKill) {
@@ -633,16 +1259,19 @@ public class GameManager extends GameCore {
             }
         }
         
-        Iterator i = map.getBullets();
-        while (i.hasNext()) {
-            Bullet b = (Bullet) i.next();
-            if (isCollision(player, b)) {
-            	i.remove();
+        ArrayList nearby = nearbyCache;
+        nearby.clear();
+        getBulletsNear(player, nearby);
+        for (int i=0; i<nearby.size(); i++) {
+            Bullet b = (Bullet)nearby.get(i);
+            if (isBulletCollision(b, player)) {
+            	map.removeBullet(b);
             	if (!inv){
             		player.healthHurt(5);
             	}
             }
         }
+        nearby.clear();
     }
     
     /**
@@ -652,8 +1281,7 @@ public class GameManager extends GameCore {
     	//For sprite, check if it hit any bullet
     	boolean result = getBulletCollision(creature);
     	if (result){
-    		soundManager.play(prizeSound,
-                    new EchoFilter(2000, .7f), false);
+    		playSound(prizeSound, new EchoFilter(2000, .7f));
             creature.setState(Creature.STATE_DYING);
             Player player = (Player) map.getPlayer();
             player.updateScore(5);
@@ -662,24 +1290,54 @@ public class GameManager extends GameCore {
     
     public boolean getBulletCollision(Creature creature) {
 
-        // run through the list of Sprites
-        Iterator i = map.getBullets();
-        while (i.hasNext()) {
-            Bullet b = (Bullet)i.next();
-            if (isCollision(creature, b) && b.fromPlayer == true) {
-        		i.remove();
+        // run through the list of nearby bullets
+        ArrayList nearby = nearbyCache;
+        nearby.clear();
+        getBulletsNear(creature, nearby);
+        for (int i=0; i<nearby.size(); i++) {
+            Bullet b = (Bullet)nearby.get(i);
+            if (isBulletCollision(b, creature) && b.fromPlayer == true) {
+        		map.removeBullet(b);
         		Player player = (Player) map.getPlayer();
         		player.boostHealth(10);
+        		nearby.clear();
         		return true;
             	
             }
         }
 
         // no collision found
+        nearby.clear();
         return false;
     }
 
 
+    /**
+        Adds the bullets that may have touched the Sprite during
+        their last move to the result list.
+    */
+    private void getBulletsNear(Sprite sprite, ArrayList result) {
+        int margin = maxBulletTravel;
+        map.getBulletsNear(
+            Math.round(sprite.getX()) - margin,
+            Math.round(sprite.getY()) - margin,
+            sprite.getWidth() + 2 * margin,
+            sprite.getHeight() + 2 * margin, result);
+    }
+
+
+    /**
+        Checks if a bullet touched a Sprite anywhere along its
+        last move, so fast bullets can't pass through Sprites.
+    */
+    private boolean isBulletCollision(Bullet bullet, Sprite sprite) {
+        collisionChecks++;
+        return isCollision(sprite, bullet) ||
+            getSweptCollisionTime(bullet, bullet.lastX,
+                bullet.lastY, sprite) >= 0;
+    }
+
+
     /**
         Gives the player the specified power up and removes it
         from the map.
@@ -695,12 +1353,12 @@ public class GameManager extends GameCore {
             invT = System.currentTimeMillis();
         }
         else if (powerUp instanceof PowerUp.Mushroom){
-        	soundManager.play(prizeSound);
+        	playSound(prizeSound, null);
         	Player player = (Player) map.getPlayer();
         	player.boostHealth(5);
         }
         else if (powerUp instanceof PowerUp.Music) {
-            soundManager.play(prizeSound);
+            playSound(prizeSound, null);
             toggleDrumPlayback();
         }
         else if (powerUp instanceof PowerUp.Goal) {
@@ -708,9 +1366,13 @@ public class GameManager extends GameCore {
         	Player player = (Player) map.getPlayer();
         	score = player.getScore();
         	
-            soundManager.play(prizeSound,new EchoFilter(2000, .7f), false);
+            playSound(prizeSound, new EchoFilter(2000, .7f));
+            map.clearBullets();
+            long startTime = System.nanoTime();
             map = resourceManager.loadNextMap();
-            
+            lastTransitionTime = System.nanoTime() - startTime;
+            resourceManager.prefetchNextMap();
+
             Player newplayer = (Player) map.getPlayer();
             newplayer.updateScore(score);
         }
@@ -0,0 +1,235 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.util.FrameProfiler;
+import com.brackeen.javagamebook.util.Histogram;
+
+/**
+    The HeadlessSimulation class runs the game logic without a
+    display, input devices, or sound. The GameManager is updated
+    with a fixed time step, either at a fixed number of ticks
+    per second or as fast as possible, and the number of ticks
+    per second is reported.
+    <p>Usage:
+    <pre>
+    java -Djava.awt.headless=true
+        com.brackeen.javagamebook.tilegame.HeadlessSimulation
+        [mapfile] [-rate ticksPerSecond] [-step ms]
+        [-seconds n] [-ticks n] [-chunks n] [-radius tiles]
+        [-profile file]
+    </pre>
+    A rate of 0 (the default) runs as fast as possible. If
+    -chunks is specified, at most that many chunks of the map (at
+    least TileMap.MIN_LOADED_CHUNKS) are kept in memory. -radius sets the active radius: only Sprites
+    within that many tiles of the view are updated. -profile
+    times each phase of every tick, appends the percentiles of
+    each second to the file, and prints the last second's
+    percentiles at the end.
+*/
+public class HeadlessSimulation {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        String gamefile = null;
+        int rate = 0;
+        long step = 16;
+        long seconds = 10;
+        long ticks = 0;
+        int radius = 0;
+        for (int i=0; i<args.length; i++) {
+            if (args[i].equals("-rate")) {
+                rate = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-step")) {
+                step = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("-seconds")) {
+                seconds = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("-ticks")) {
+                ticks = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("-radius")) {
+                radius = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-profile")) {
+                System.setProperty("tilegame.profileFile", args[++i]);
+            }
+            else if (args[i].equals("-chunks")) {
+                System.setProperty("tilegame.maxLoadedChunks",
+                    args[++i]);
+            }
+            else {
+                gamefile = args[i];
+            }
+        }
+
+        GameManager game = new GameManager();
+        game.initHeadless(gamefile);
+        if (radius > 0) {
+            game.setActiveRadius(radius);
+        }
+        game.getProfiler().setInterval(1000);
+        if (game.getMap() == null) {
+            System.err.println("No map to load.");
+            System.exit(1);
+        }
+
+        HeadlessSimulation sim = new HeadlessSimulation(game, step);
+        sim.run(rate, seconds * NANOS_PER_SECOND, ticks);
+        System.exit(0);
+    }
+
+
+    private GameManager game;
+    private long step;
+    private long totalTicks;
+    private long bulletAllocations;
+
+    /**
+        Creates a new HeadlessSimulation for the specified
+        GameManager, which should already be initialized with
+        GameManager.initHeadless(). Each tick advances the game by
+        the specified number of milliseconds.
+    */
+    public HeadlessSimulation(GameManager game, long step) {
+        this.game = game;
+        this.step = step;
+    }
+
+
+    /**
+        Gets the total number of ticks run so far.
+    */
+    public long getTotalTicks() {
+        return totalTicks;
+    }
+
+
+    /**
+        Runs a single tick: loads the chunks of the map near the
+        player, saves the render state like the game loop does,
+        and updates the game by one time step.
+    */
+    public void tick() {
+        prepareChunks(game.getMap());
+        game.saveRenderState();
+        game.update(step);
+        game.getProfiler().endFrame();
+        bulletAllocations += game.getBulletAllocations();
+        totalTicks++;
+    }
+
+
+    /**
+        Runs the simulation until the specified duration (in
+        nanoseconds) has passed, or until maxTicks ticks have run
+        if maxTicks is greater than zero. If rate is greater than
+        zero, the simulation runs at that many ticks per second.
+        Otherwise, it runs as fast as possible. Prints the number
+        of ticks per second once a second, and a summary at the
+        end.
+    */
+    public void run(int rate, long duration, long maxTicks) {
+        long tickTime = (rate > 0) ? NANOS_PER_SECOND / rate : 0;
+        long startTime = System.nanoTime();
+        long reportTime = startTime + NANOS_PER_SECOND;
+        long nextTickTime = startTime;
+        long reportTicks = 0;
+
+        while (true) {
+            long currTime = System.nanoTime();
+            if (maxTicks > 0) {
+                if (totalTicks >= maxTicks) {
+                    break;
+                }
+            }
+            else if (currTime - startTime >= duration) {
+                break;
+            }
+
+            // wait for the next tick if running at a fixed rate
+            if (tickTime > 0 && currTime < nextTickTime) {
+                sleepNanos(nextTickTime - currTime);
+                continue;
+            }
+            nextTickTime += tickTime;
+
+            tick();
+            reportTicks++;
+
+            if (currTime >= reportTime) {
+                System.out.println("ticks/sec: " + reportTicks);
+                reportTicks = 0;
+                reportTime += NANOS_PER_SECOND;
+            }
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+        System.out.println("total ticks: " + totalTicks +
+            ", elapsed: " + (elapsed / 1000000) + " ms" +
+            ", avg ticks/sec: " +
+            (totalTicks * NANOS_PER_SECOND / Math.max(elapsed, 1)) +
+            ", avg ns/tick: " + (elapsed / Math.max(totalTicks, 1)));
+        System.out.println("bullet allocations: " + bulletAllocations);
+        if (game.getLastTransitionTime() > 0) {
+            System.out.println("last map transition: " +
+                (game.getLastTransitionTime() / 1000) + " us");
+        }
+        System.out.println("active sprites: " +
+            game.getActiveSpriteCount() + " of " +
+            game.getMap().getNumSprites());
+        System.out.println("loaded chunks: " +
+            game.getMap().getNumLoadedChunks());
+        printProfile(game.getProfiler());
+    }
+
+
+    /**
+        Prints the mean, 50th and 99th percentile, and maximum
+        time, in microseconds, of each phase of a tick in the
+        last complete second, if the FrameProfiler is enabled.
+    */
+    private void printProfile(FrameProfiler profiler) {
+        if (!profiler.isEnabled() || profiler.getIntervalCount() == 0) {
+            return;
+        }
+        System.out.println("phase (us): mean p50 p99 max");
+        for (int i=0; i<profiler.getNumPhases(); i++) {
+            Histogram h = profiler.getHistogram(i);
+            if (h.getMax() > 0) {
+                System.out.println("  " + profiler.getPhaseName(i) +
+                    ": " + (h.getMean() / 1000) +
+                    " " + (h.getValueAtPercentile(50) / 1000) +
+                    " " + (h.getValueAtPercentile(99) / 1000) +
+                    " " + (h.getMax() / 1000));
+            }
+        }
+    }
+
+
+    /**
+        Loads the chunks of the map that would be on screen, plus
+        a chunk on each side. Normally this is done by the
+        TileMapRenderer while drawing.
+    */
+    private void prepareChunks(TileMap map) {
+        int viewWidth = game.getViewWidth();
+        int firstTileX = TileMapRenderer.pixelsToTiles(
+            -TileMapRenderer.getOffsetX(map, viewWidth));
+        int lastTileX = firstTileX +
+            TileMapRenderer.pixelsToTiles(viewWidth) + 1;
+        map.prepareChunks(firstTileX - TileMap.CHUNK_WIDTH,
+            lastTileX + TileMap.CHUNK_WIDTH);
+    }
+
+
+    private static void sleepNanos(long nanos) {
+        try {
+            Thread.sleep(nanos / 1000000, (int)(nanos % 1000000));
+        }
+        catch (InterruptedException ex) { }
+    }
+}
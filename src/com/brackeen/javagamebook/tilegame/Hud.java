@@ -0,0 +1,156 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
+/**
+    The Hud class draws the heads-up display (health, score, and
+    so on) over the game. The HUD is made of Widgets, each of
+    which watches one int value. The Widgets are drawn to a
+    cached translucent image, which is only redrawn when one of
+    the watched values changes; otherwise drawing the HUD is a
+    single drawImage() call.
+    <p>To add to the HUD, create a Widget (usually a TextWidget)
+    whose getValue() method returns the value to watch, and call
+    addWidget().
+*/
+public class Hud {
+
+    private static final Color TRANSPARENT = new Color(0, 0, 0, 0);
+
+    private int width;
+    private int height;
+    private ArrayList widgets = new ArrayList();
+    private BufferedImage image;
+    private long redrawCount;
+
+    /**
+        Creates a new Hud covering the specified width and height
+        at the top of the screen.
+    */
+    public Hud(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+
+    /**
+        Adds a Widget to this HUD.
+    */
+    public void addWidget(Widget widget) {
+        widgets.add(widget);
+        image = null;
+    }
+
+
+    /**
+        Gets the number of times the HUD image was redrawn since
+        this Hud was created.
+    */
+    public long getRedrawCount() {
+        return redrawCount;
+    }
+
+
+    /**
+        Draws this HUD, first redrawing the cached image if any
+        watched value changed.
+    */
+    public void draw(Graphics2D g) {
+        boolean changed = false;
+        for (int i=0; i<widgets.size(); i++) {
+            Widget widget = (Widget)widgets.get(i);
+            int value = widget.getValue();
+            if (value != widget.value) {
+                widget.value = value;
+                changed = true;
+            }
+        }
+
+        if (image == null) {
+            image = g.getDeviceConfiguration().createCompatibleImage(
+                width, height, Transparency.TRANSLUCENT);
+            changed = true;
+        }
+        if (changed) {
+            redraw();
+        }
+        g.drawImage(image, 0, 0, null);
+    }
+
+
+    private void redraw() {
+        Graphics2D g = image.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.setColor(TRANSPARENT);
+        g.fillRect(0, 0, width, height);
+        g.setComposite(AlphaComposite.SrcOver);
+        for (int i=0; i<widgets.size(); i++) {
+            Widget widget = (Widget)widgets.get(i);
+            widget.draw(g, widget.value);
+        }
+        g.dispose();
+        redrawCount++;
+    }
+
+
+    /**
+        A Widget is one part of the HUD that shows an int value.
+    */
+    public static abstract class Widget {
+
+        // the value last drawn
+        private int value = Integer.MIN_VALUE;
+
+        /**
+            Gets the current value this Widget shows. The HUD is
+            redrawn whenever it changes.
+        */
+        public abstract int getValue();
+
+
+        /**
+            Draws this Widget, showing the specified value, to the
+            HUD image.
+        */
+        public abstract void draw(Graphics2D g, int value);
+    }
+
+
+    /**
+        A TextWidget draws a label followed by its value, like
+        "Score: 10". It draws nothing if the value is HIDDEN.
+    */
+    public static abstract class TextWidget extends Widget {
+
+        /**
+            The value for TextWidgets that shouldn't be drawn.
+        */
+        public static final int HIDDEN = -1;
+
+        private String label;
+        private int x;
+        private int y;
+        private Color color;
+
+        /**
+            Creates a new TextWidget with its text's baseline at
+            the specified location.
+        */
+        public TextWidget(String label, int x, int y, Color color) {
+            this.label = label;
+            this.x = x;
+            this.y = y;
+            this.color = color;
+        }
+
+
+        public void draw(Graphics2D g, int value) {
+            if (value != HIDDEN) {
+                g.setColor(color);
+                g.drawString(label + value, x, y);
+            }
+        }
+    }
+}
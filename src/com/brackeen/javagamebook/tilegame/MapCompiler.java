@@ -0,0 +1,43 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.IOException;
+
+/**
+    The MapCompiler class converts text map files to the compiled
+    (binary) map format, which loads without parsing. Each
+    compiled map is written next to its text file, with the
+    extension ResourceManager.MAP_FILE_EXTENSION. The ResourceManager
+    loads a compiled map instead of a text map if the compiled map
+    is up to date.
+    <p>Usage:
+    <pre>
+    java com.brackeen.javagamebook.tilegame.MapCompiler
+        maps/map1.txt [maps/map2.txt ...]
+    </pre>
+*/
+public class MapCompiler {
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+
+        // only the number of tile images is needed, so use
+        // stub images
+        ResourceManager resourceManager =
+            new ResourceManager(null, true);
+        for (int i=0; i<args.length; i++) {
+            String textFile = args[i];
+            String binaryFile = textFile;
+            if (binaryFile.endsWith(".txt")) {
+                binaryFile = binaryFile.substring(0,
+                    binaryFile.length() - 4);
+            }
+            binaryFile += ResourceManager.MAP_FILE_EXTENSION;
+
+            long startTime = System.nanoTime();
+            resourceManager.compileMap(textFile, binaryFile);
+            long elapsed = System.nanoTime() - startTime;
+            System.out.println(textFile + " -> " + binaryFile +
+                " (" + (elapsed / 1000000) + " ms)");
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.*;
+
+import com.brackeen.javagamebook.util.FrameProfiler;
+import com.brackeen.javagamebook.util.Histogram;
+
+/**
+    The ProfilerOverlay class draws the results of a
+    FrameProfiler over the game: a graph of the time of each
+    recent frame, and the mean, 50th, 99th percentile, and
+    maximum time of each phase in the last interval. The text is
+    only rebuilt when an interval ends.
+*/
+public class ProfilerOverlay {
+
+    private static final Color BACKGROUND = new Color(0, 0, 0, 160);
+    private static final Color GRAPH_COLOR = new Color(0, 255, 0);
+    private static final Color SLOW_COLOR = new Color(255, 64, 64);
+    private static final Color TARGET_COLOR = new Color(255, 255, 0);
+    private static final Font FONT = new Font("Monospaced", Font.PLAIN, 12);
+    private static final int LINE_HEIGHT = 14;
+    private static final int GRAPH_HEIGHT = 60;
+    private static final int PADDING = 6;
+
+    // frames longer than this are drawn in the slow color
+    private static final long TARGET_FRAME_TIME = 1000000000L / 60;
+    // nanoseconds per pixel of graph height
+    private static final long GRAPH_SCALE = TARGET_FRAME_TIME * 2 /
+        GRAPH_HEIGHT;
+
+    private FrameProfiler profiler;
+    private boolean visible;
+    private String[] lines;
+    private long linesInterval = -1;
+
+    /**
+        Creates a new, hidden ProfilerOverlay for the specified
+        FrameProfiler.
+    */
+    public ProfilerOverlay(FrameProfiler profiler) {
+        this.profiler = profiler;
+        lines = new String[profiler.getNumPhases() + 2];
+    }
+
+
+    /**
+        Shows or hides this overlay.
+    */
+    public void setVisible(boolean visible) {
+        this.visible = visible;
+    }
+
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+
+    /**
+        Draws this overlay in the lower-left corner of the
+        screen, if it's visible.
+    */
+    public void draw(Graphics2D g, int screenWidth, int screenHeight) {
+        if (!visible) {
+            return;
+        }
+        updateLines();
+
+        int width = Math.min(screenWidth,
+            profiler.getHistoryCount() + PADDING * 2);
+        width = Math.max(width, 360);
+        int height = GRAPH_HEIGHT + lines.length * LINE_HEIGHT +
+            PADDING * 3;
+        int x = 0;
+        int y = screenHeight - height;
+        g.setColor(BACKGROUND);
+        g.fillRect(x, y, width, height);
+
+        // draw the graph of recent frame times, newest on the
+        // right
+        int graphBottom = y + PADDING + GRAPH_HEIGHT;
+        int count = Math.min(profiler.getHistoryCount(),
+            width - PADDING * 2);
+        for (int i=0; i<count; i++) {
+            long time = profiler.getFrameTime(i);
+            int barHeight = (int)Math.min(time / GRAPH_SCALE,
+                GRAPH_HEIGHT);
+            g.setColor((time > TARGET_FRAME_TIME) ?
+                SLOW_COLOR : GRAPH_COLOR);
+            int barX = x + width - PADDING - 1 - i;
+            g.drawLine(barX, graphBottom, barX,
+                graphBottom - barHeight);
+        }
+        int targetY = graphBottom -
+            (int)(TARGET_FRAME_TIME / GRAPH_SCALE);
+        g.setColor(TARGET_COLOR);
+        g.drawLine(x + PADDING, targetY, x + width - PADDING, targetY);
+
+        // draw the text
+        g.setFont(FONT);
+        g.setColor(Color.WHITE);
+        int lineY = graphBottom + PADDING + LINE_HEIGHT;
+        for (int i=0; i<lines.length; i++) {
+            g.drawString(lines[i], x + PADDING, lineY);
+            lineY += LINE_HEIGHT;
+        }
+    }
+
+
+    /**
+        Rebuilds the text if an interval ended since it was last
+        built.
+    */
+    private void updateLines() {
+        long interval = profiler.getIntervalCount();
+        if (interval == linesInterval) {
+            return;
+        }
+        linesInterval = interval;
+        lines[0] = format("phase (ms)", "mean", "p50", "p99", "max");
+        int numPhases = profiler.getNumPhases();
+        for (int i=0; i<numPhases; i++) {
+            lines[i + 1] = format(profiler.getPhaseName(i),
+                profiler.getHistogram(i));
+        }
+        lines[numPhases + 1] = format("frame",
+            profiler.getFrameHistogram());
+    }
+
+
+    private static String format(String name, Histogram h) {
+        return format(name, toMillis(h.getMean()),
+            toMillis(h.getValueAtPercentile(50)),
+            toMillis(h.getValueAtPercentile(99)),
+            toMillis(h.getMax()));
+    }
+
+
+    private static String format(String name, String a, String b,
+        String c, String d)
+    {
+        return pad(name, 12) + pad(a, 8) + pad(b, 8) + pad(c, 8) +
+            pad(d, 8);
+    }
+
+
+    private static String toMillis(long nanos) {
+        long hundredths = (nanos + 5000) / 10000;
+        long fraction = hundredths % 100;
+        return (hundredths / 100) + "." +
+            ((fraction < 10) ? "0" : "") + fraction;
+    }
+
+
+    private static String pad(String s, int width) {
+        StringBuffer buf = new StringBuffer(s);
+        while (buf.length() < width) {
+            buf.append(' ');
+        }
+        return buf.toString();
+    }
+}
@@ -2,56 +2,474 @@ package com.brackeen.javagamebook.tilegame;
 
 import java.awt.*;
 import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import javax.swing.ImageIcon;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
+import com.brackeen.javagamebook.events.LevelLoadEvent;
 import com.brackeen.javagamebook.graphics.*;
 import com.brackeen.javagamebook.tilegame.sprites.*;
+import com.brackeen.javagamebook.util.BakedCache;
 
 
 /**
     The ResourceManager class loads and manages tile Images and
-    "host" Sprites used in the game. Game Sprites are cloned from
-    "host" Sprites.
+    the SpriteFactories used in the game. Game Sprites are
+    created by type from the SpriteRegistry. Every sprite frame
+    (including the mirrored and flipped frames) is packed into a
+    TextureAtlas.
 */
 public class ResourceManager {
 
     private ArrayList tiles;
     private int currentMap;
     private GraphicsConfiguration gc;
+    private boolean stubImages;
 
-    // host sprites used for cloning
-    private Sprite playerSprite;
-    private Sprite musicSprite;
-    private Sprite coinSprite;
-    private Sprite mushroomSprite;
-    private Sprite explodeSprite;
-    private Sprite gasSprite;
-    private Sprite goalSprite;
-    private Sprite grubSprite;
-    private Sprite flySprite;
-    public Sprite bulletSprite;
+    // factories used to create sprites
+    private SpriteRegistry spriteRegistry = new SpriteRegistry();
+
+    // images are decoded in parallel by a pool of this many
+    // threads
+    private static final int IMAGE_THREADS = Math.max(1,
+        Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private ExecutorService imagePool;
+    // images being decoded, by name
+    private HashMap imageFutures = new HashMap();
+    // decoded images, by name, so an image loaded twice is the
+    // same Image (and is only packed into the atlas once)
+    private HashMap images = new HashMap();
+
+    // decoded and transformed images are kept on disk as ARGB
+    // pixels, so they don't need to be decoded on the next start
+    private static final String BAKED_IMAGE_FORMAT = "argb";
+    private BakedCache bakedCache = BakedCache.getDefault();
+
+    // sprite frames are packed into pages of this size
+    private static final int ATLAS_PAGE_SIZE = 1024;
+    private TextureAtlas atlas;
+
+    // power ups and special blocks only loop their animations, so
+    // their frames are derived from this clock
+    private AnimationClock animationClock = new AnimationClock();
+
+    // number of reusable Bullets shared by all maps
+    private static final int BULLET_POOL_CAPACITY = 64;
+    private BulletPool bulletPool;
+
+    // the next map, loaded in the background
+    private ExecutorService mapLoader;
+    private Future nextMap;
+    private boolean lastMapPrefetched;
+
+    // parsed maps (TemplateLoads), by file name
+    private ConcurrentHashMap mapTemplates = new ConcurrentHashMap();
+
+    // map file characters of each Sprite, and the Sprite types
+    private static final String SPAWN_CHARS = "o!*12@$%";
+    private static final Class[] SPAWN_TYPES = {
+        PowerUp.Star.class,
+        PowerUp.Music.class,
+        PowerUp.Goal.class,
+        Grub.class,
+        Fly.class,
+        PowerUp.Mushroom.class,
+        SpecialBlock.Explode.class,
+        SpecialBlock.Gas.class
+    };
+
+    // compiled (binary) map files
+    public static final String MAP_FILE_EXTENSION = ".map";
+    private static final int MAP_FILE_MAGIC = 0x544d4150;
+    private static final int MAP_FILE_VERSION = 1;
+    private static final int MAP_HEADER_SIZE = 24;
+
+    // chunks of each map kept in memory, or 0 to load entire maps
+    private int maxLoadedChunks =
+        Integer.getInteger("tilegame.maxLoadedChunks", 0).intValue();
 
     /**
         Creates a new ResourceManager with the specified
         GraphicsConfiguration.
     */
     public ResourceManager(GraphicsConfiguration gc) {
+        this(gc, false);
+    }
+
+
+    /**
+        Creates a new ResourceManager with the specified
+        GraphicsConfiguration. The GraphicsConfiguration may be
+        null when running without a display.
+        <p>If stubImages is true, image files are not decoded.
+        Instead, each image is a blank image the same size as
+        the image file. This is enough to run the game logic
+        (collisions depend on image sizes) in headless mode.
+    */
+    public ResourceManager(GraphicsConfiguration gc,
+        boolean stubImages)
+    {
         this.gc = gc;
+        this.stubImages = stubImages;
+        if (!stubImages) {
+            atlas = new TextureAtlas(gc, ATLAS_PAGE_SIZE);
+        }
+
+        // decode every image in parallel, then build the sprites
+        // as the images they need are ready
+        long startTime = System.nanoTime();
+        imagePool = Executors.newFixedThreadPool(IMAGE_THREADS,
+            new DaemonThreadFactory("ImageLoader", Thread.NORM_PRIORITY));
+        prefetchImages();
+        long time = logStage("start image decoding", startTime);
         loadTileImages();
+        time = logStage("tiles", time);
         loadCreatureSprites();
+        time = logStage("creatures", time);
         loadPowerUpSprites();
+        time = logStage("power-ups", time);
         loadSpecialBlockSprites();
+        time = logStage("special blocks", time);
+        releaseImages();
+        imagePool.shutdown();
+        logStage("total", startTime);
     }
 
 
     /**
-        Gets an image from the images/ directory.
+        Creates a ResourceManager in a background thread, so
+        other work (like starting sound) can be done while the
+        images load. Call get() on the returned Future to get the
+        ResourceManager.
+    */
+    public static Future loadInBackground(
+        final GraphicsConfiguration gc)
+    {
+        FutureTask task = new FutureTask(new Callable() {
+            public Object call() {
+                return new ResourceManager(gc);
+            }
+        });
+        new DaemonThreadFactory("ResourceLoader",
+            Thread.NORM_PRIORITY).newThread(task).start();
+        return task;
+    }
+
+
+    /**
+        Prints the time since startTime for a stage of loading.
+        Returns the current time.
+    */
+    private long logStage(String stage, long startTime) {
+        long time = System.nanoTime();
+        System.out.println("ResourceManager: " + stage + ": " +
+            ((time - startTime) / 1000000) + " ms");
+        return time;
+    }
+
+
+    /**
+        Starts decoding every image in the images/ directory on
+        the image thread pool.
+    */
+    private void prefetchImages() {
+        String[] names = new File("images").list();
+        if (names == null) {
+            return;
+        }
+        for (int i=0; i<names.length; i++) {
+            if (names[i].endsWith(".png")) {
+                final String name = names[i];
+                Future future = imagePool.submit(new Callable() {
+                    public Object call() {
+                        return decodeImage("images/" + name);
+                    }
+                });
+                synchronized (imageFutures) {
+                    imageFutures.put(name, future);
+                }
+            }
+        }
+    }
+
+
+    /**
+        Forgets the images decoded while building the tiles and
+        sprites (the tiles and the texture atlas keep what they
+        need), and stops decoding the images that weren't used,
+        so they aren't kept forever.
+    */
+    private void releaseImages() {
+        synchronized (imageFutures) {
+            Iterator i = imageFutures.values().iterator();
+            while (i.hasNext()) {
+                ((Future)i.next()).cancel(false);
+            }
+            imageFutures.clear();
+            images.clear();
+        }
+    }
+
+
+    /**
+        Gets an image from the images/ directory. If the image
+        is being decoded in the background, waits for it. Loading
+        the same name again returns the same Image.
     */
     public Image loadImage(String name) {
-        String filename = "images/" + name;
-        return new ImageIcon(filename).getImage();
+        Future future;
+        synchronized (imageFutures) {
+            Image image = (Image)images.get(name);
+            if (image != null) {
+                return image;
+            }
+            future = (Future)imageFutures.remove(name);
+        }
+        Image image = (future != null) ? (Image)getResult(future) :
+            decodeImage("images/" + name);
+        synchronized (imageFutures) {
+            images.put(name, image);
+        }
+        return image;
+    }
+
+
+    /**
+        Decodes an image file with ImageIO and converts it to an
+        image compatible with the GraphicsConfiguration, so it
+        can be drawn quickly. Returns a blank tile-sized image if
+        the file can't be read.
+    */
+    private Image decodeImage(String filename) {
+        if (stubImages) {
+            return loadStubImage(filename);
+        }
+        File file = new File(filename);
+        Image bakedImage = loadBakedImage(file, BAKED_IMAGE_FORMAT);
+        if (bakedImage != null) {
+            return bakedImage;
+        }
+        BufferedImage image = null;
+        try {
+            image = ImageIO.read(file);
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        if (image == null) {
+            int size = TileMapRenderer.tilesToPixels(1);
+            return createCompatibleImage(size, size,
+                Transparency.BITMASK);
+        }
+        bakeImage(file, BAKED_IMAGE_FORMAT, image,
+            image.getTransparency());
+        return toCompatibleImage(image, image.getTransparency());
+    }
+
+
+    /**
+        Copies an image to an image compatible with the
+        GraphicsConfiguration. If there is no
+        GraphicsConfiguration, the image is returned as is.
+    */
+    private Image toCompatibleImage(BufferedImage image,
+        int transparency)
+    {
+        if (gc == null) {
+            return image;
+        }
+        Image newImage = gc.createCompatibleImage(image.getWidth(),
+            image.getHeight(), transparency);
+        Graphics2D g = (Graphics2D)newImage.getGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return newImage;
+    }
+
+
+    /**
+        Gets an image derived from a source image file in the
+        specified format from the BakedCache, as an image
+        compatible with the GraphicsConfiguration. Returns null if
+        it isn't cached, or the file changed since it was.
+    */
+    private Image loadBakedImage(File source, String format) {
+        ByteBuffer buffer = bakedCache.get(source, format);
+        if (buffer == null || buffer.remaining() < 12) {
+            return null;
+        }
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int transparency = buffer.getInt();
+        if (width <= 0 || height <= 0 ||
+            buffer.remaining() != width * height * 4)
+        {
+            return null;
+        }
+        BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_ARGB);
+        int[] pixels =
+            ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        buffer.asIntBuffer().get(pixels);
+        return toCompatibleImage(image, transparency);
+    }
+
+
+    /**
+        Stores the ARGB pixels of an image derived from a source
+        image file in the BakedCache, as the width, the height,
+        the transparency, and the pixels, row by row.
+    */
+    private void bakeImage(File source, String format, Image image,
+        int transparency)
+    {
+        if (!bakedCache.isEnabled() || !(image instanceof BufferedImage)) {
+            return;
+        }
+        BufferedImage bufferedImage = (BufferedImage)image;
+        int width = bufferedImage.getWidth();
+        int height = bufferedImage.getHeight();
+        int[] pixels = bufferedImage.getRGB(0, 0, width, height,
+            null, 0, width);
+        ByteBuffer buffer = ByteBuffer.allocate(12 + pixels.length * 4);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putInt(transparency);
+        buffer.asIntBuffer().put(pixels);
+        buffer.clear();
+        bakedCache.put(source, format, buffer);
+    }
+
+
+    /**
+        Gets the result of a Future, rethrowing any exception.
+    */
+    private static Object getResult(Future future) {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+
+    /**
+        Creates a blank image the same size as the specified
+        image file. Only the image header is read. If the size
+        can't be read, a tile-sized image is returned.
+    */
+    private Image loadStubImage(String filename) {
+        int width = TileMapRenderer.tilesToPixels(1);
+        int height = width;
+        try {
+            ImageInputStream in =
+                ImageIO.createImageInputStream(new File(filename));
+            if (in != null) {
+                Iterator readers = ImageIO.getImageReaders(in);
+                if (readers.hasNext()) {
+                    ImageReader reader = (ImageReader)readers.next();
+                    reader.setInput(in);
+                    width = reader.getWidth(0);
+                    height = reader.getHeight(0);
+                    reader.dispose();
+                }
+                in.close();
+            }
+        }
+        catch (IOException ex) {
+            // use the default size
+        }
+        return createCompatibleImage(width, height,
+            Transparency.BITMASK);
+    }
+
+
+    /**
+        Creates an image compatible with this ResourceManager's
+        GraphicsConfiguration, or a plain ARGB image if there is
+        no GraphicsConfiguration.
+    */
+    private Image createCompatibleImage(int width, int height,
+        int transparency)
+    {
+        if (gc == null) {
+            return new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        }
+        return gc.createCompatibleImage(width, height,
+            transparency);
+    }
+
+
+    /**
+        Copies a sprite frame into the TextureAtlas, and returns
+        its region of the atlas. Stub images aren't packed.
+    */
+    private ImageRegion pack(Image image) {
+        if (atlas == null) {
+            return new ImageRegion(image);
+        }
+        return atlas.add(image);
+    }
+
+
+    /**
+        Creates a ClockedAnimation with the frames of the
+        specified Animation, driven by this ResourceManager's
+        AnimationClock. Sprites created from it get clones that
+        share the frames and the clock.
+    */
+    private Animation clocked(Animation anim) {
+        return new ClockedAnimation(anim.getFrames(), animationClock);
+    }
+
+
+    /**
+        Gets the AnimationClock that power up and special block
+        animations are driven by. The game should advance it
+        every update.
+    */
+    public AnimationClock getAnimationClock() {
+        return animationClock;
+    }
+
+
+    /**
+        Gets the TextureAtlas that sprite frames are packed into,
+        or null if images are stubbed.
+    */
+    public TextureAtlas getAtlas() {
+        return atlas;
     }
 
 
@@ -65,6 +483,41 @@ public class ResourceManager {
     }
 
 
+    /**
+        Starts scaling an image on the image thread pool (or
+        scales it now if the pool was shut down). The image was
+        loaded from the specified file in the images/ directory;
+        the scaled image is kept in the BakedCache for that file.
+    */
+    private Future transformImage(String name, final Image image,
+        final float x, final float y)
+    {
+        final File source = new File("images/" + name);
+        final String format = BAKED_IMAGE_FORMAT + ".scale" + x + "x" + y;
+        FutureTask task = new FutureTask(new Callable() {
+            public Object call() {
+                if (stubImages) {
+                    return getScaledImage(image, x, y);
+                }
+                Image newImage = loadBakedImage(source, format);
+                if (newImage == null) {
+                    newImage = getScaledImage(image, x, y);
+                    bakeImage(source, format, newImage,
+                        Transparency.BITMASK);
+                }
+                return newImage;
+            }
+        });
+        if (imagePool.isShutdown()) {
+            task.run();
+        }
+        else {
+            imagePool.execute(task);
+        }
+        return task;
+    }
+
+
     private Image getScaledImage(Image image, float x, float y) {
 
         // set up the transform
@@ -75,7 +528,7 @@ public class ResourceManager {
             (y-1) * image.getHeight(null) / 2);
 
         // create a transparent (not translucent) image
-        Image newImage = gc.createCompatibleImage(
+        Image newImage = createCompatibleImage(
             image.getWidth(null),
             image.getHeight(null),
             Transparency.BITMASK);
@@ -89,25 +542,114 @@ public class ResourceManager {
     }
 
 
+    /**
+        Gets the SpriteRegistry used to create Sprites by type.
+    */
+    public SpriteRegistry getSpriteRegistry() {
+        return spriteRegistry;
+    }
+
+
+    /**
+        Gets the BulletPool that every map's Bullets come from.
+    */
+    public BulletPool getBulletPool() {
+        return bulletPool;
+    }
+
+
+    /**
+        Loads the next map. If the next map was prefetched with
+        prefetchNextMap(), the prefetched map is used, waiting for
+        it to finish loading if needed. Returns null if there are
+        no maps to load.
+    */
     public TileMap loadNextMap() {
-        TileMap map = null;
-        while (map == null) {
-            currentMap++;
+        LoadedMap next = null;
+        if (nextMap != null) {
+            lastMapPrefetched = nextMap.isDone();
+            try {
+                next = (LoadedMap)nextMap.get();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException ex) {
+                ex.getCause().printStackTrace();
+            }
+            nextMap = null;
+        }
+        else {
+            lastMapPrefetched = false;
+        }
+
+        if (next == null) {
+            next = loadMapAfter(currentMap);
+            if (next == null) {
+                // no maps to load!
+                return null;
+            }
+        }
+        currentMap = next.mapNumber;
+        return next.map;
+    }
+
+
+    /**
+        Starts loading the map after the current map in a
+        background thread. The next call to loadNextMap() returns
+        the prefetched map. Does nothing if the next map is
+        already being prefetched.
+    */
+    public void prefetchNextMap() {
+        if (nextMap != null) {
+            return;
+        }
+        if (mapLoader == null) {
+            mapLoader = Executors.newSingleThreadExecutor(
+                new DaemonThreadFactory("MapLoader",
+                    Thread.MIN_PRIORITY));
+        }
+        final int mapNumber = currentMap;
+        nextMap = mapLoader.submit(new Callable() {
+            public Object call() {
+                return loadMapAfter(mapNumber);
+            }
+        });
+    }
+
+
+    /**
+        Checks if the map returned by the last call to
+        loadNextMap() was already prefetched, so loading it didn't
+        wait for any I/O.
+    */
+    public boolean wasLastMapPrefetched() {
+        return lastMapPrefetched;
+    }
+
+
+    /**
+        Loads the first map after the specified map number,
+        starting over at map 1 after the last map. Returns null if
+        there are no maps.
+    */
+    private LoadedMap loadMapAfter(int mapNumber) {
+        while (true) {
+            mapNumber++;
             try {
-                map = loadMap(
-                    "maps/map" + currentMap + ".txt");
+                TileMap map = loadMap(
+                    "maps/map" + mapNumber + ".txt");
+                return new LoadedMap(map, mapNumber);
             }
             catch (IOException ex) {
-                if (currentMap == 1) {
+                if (mapNumber == 1) {
                     // no maps to load!
                     return null;
                 }
-                currentMap = 0;
-                map = null;
+                mapNumber = 0;
             }
         }
-
-        return map;
     }
 
 
@@ -133,8 +675,190 @@ public class ResourceManager {
     }
 
 
+    /**
+        Loads a map, recording a LevelLoadEvent.
+    */
     private TileMap loadMap(String filename)
         throws IOException
+    {
+        LevelLoadEvent event = new LevelLoadEvent();
+        event.begin();
+        TileMap map = loadMap(filename, event);
+        event.mapFile = filename;
+        event.chunked = (maxLoadedChunks > 0);
+        event.width = map.getWidth();
+        event.height = map.getHeight();
+        event.sprites = map.getNumSprites();
+        event.commit();
+        return map;
+    }
+
+
+    private TileMap loadMap(String filename, LevelLoadEvent event)
+        throws IOException
+    {
+        // use the compiled map, if it's up to date
+        String binaryFile = filename;
+        if (filename.endsWith(".txt")) {
+            binaryFile = filename.substring(0, filename.length() - 4) +
+                MAP_FILE_EXTENSION;
+        }
+        File file = new File(binaryFile);
+        boolean binary = binaryFile.endsWith(MAP_FILE_EXTENSION) &&
+            file.exists() &&
+            file.lastModified() >= new File(filename).lastModified();
+        event.compiled = binary;
+
+        // a bad or outdated compiled map isn't fatal: the text map
+        // is loaded instead
+        if (binary) {
+            try {
+                return createMap(binaryFile, true);
+            }
+            catch (IOException ex) {
+                if (binaryFile.equals(filename)) {
+                    throw ex;
+                }
+                System.err.println("ResourceManager: couldn't load " +
+                    binaryFile + ", loading " + filename +
+                    " instead: " + ex);
+                event.compiled = false;
+            }
+        }
+        return createMap(filename, false);
+    }
+
+
+    /**
+        Creates a map from a text map file, or from a compiled
+        map file if binary is true.
+    */
+    private TileMap createMap(String filename, boolean binary)
+        throws IOException
+    {
+        if (maxLoadedChunks > 0) {
+            return binary ? loadBinaryMap(filename) :
+                loadChunkedMap(filename);
+        }
+
+        // create the map from its cached template
+        MapTemplate template = getMapTemplate(filename, binary);
+        TileMap newMap = new TileMap(template.tiles);
+        int[] spawns = template.spawns;
+        for (int i=0; i<spawns.length; i+=3) {
+            addSprite(newMap, SPAWN_TYPES[spawns[i]], spawns[i + 1],
+                spawns[i + 2]);
+        }
+        addPlayer(newMap);
+        return newMap;
+    }
+
+
+    /**
+        Gets the template of a map file, parsing the file if it
+        isn't cached or has changed since it was parsed. The
+        template is the map's tiles and a list of the Sprites to
+        spawn, so creating the map again (like when the player
+        dies) doesn't read the file.
+        <p>Each file is parsed by the first thread that needs it,
+        without holding a lock. Other threads that need the same
+        file wait for that parse. Threads that need a different
+        file don't wait, so the game thread can reload the current
+        map while the next map is being prefetched.
+    */
+    private MapTemplate getMapTemplate(final String filename,
+        final boolean binary) throws IOException
+    {
+        final long lastModified = new File(filename).lastModified();
+        TemplateLoad load;
+        while (true) {
+            load = (TemplateLoad)mapTemplates.get(filename);
+            if (load != null && load.lastModified == lastModified) {
+                break;
+            }
+            TemplateLoad newLoad = new TemplateLoad(new Callable() {
+                public Object call() throws IOException {
+                    return parseMapTemplate(filename, binary);
+                }
+            }, lastModified);
+            boolean added = (load == null) ?
+                mapTemplates.putIfAbsent(filename, newLoad) == null :
+                mapTemplates.replace(filename, load, newLoad);
+            if (added) {
+                load = newLoad;
+                load.run();
+                break;
+            }
+        }
+
+        try {
+            return (MapTemplate)load.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while loading " + filename);
+        }
+        catch (ExecutionException ex) {
+            // parse the file again next time
+            mapTemplates.remove(filename, load);
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+
+    /**
+        Parses a map file into a new MapTemplate.
+    */
+    private MapTemplate parseMapTemplate(String filename,
+        boolean binary) throws IOException
+    {
+        MapTemplate template = new MapTemplate();
+        if (binary) {
+            BinaryChunkLoader loader = openBinaryMap(filename);
+            template.tiles = new TileMap(loader.getWidth(),
+                loader.getHeight());
+            addTileImages(template.tiles);
+            for (int i=0; i<template.tiles.getNumChunks(); i++) {
+                loader.loadChunk(template.tiles, i, false);
+            }
+            template.spawns = loader.getSpawns();
+        }
+        else {
+            ArrayList spawns = new ArrayList();
+            template.tiles = parseTextMap(filename, spawns);
+            template.spawns = new int[spawns.size() * 3];
+            for (int i=0; i<spawns.size(); i++) {
+                System.arraycopy((int[])spawns.get(i), 0,
+                    template.spawns, i * 3, 3);
+            }
+        }
+        return template;
+    }
+
+
+    /**
+        Removes all cached map templates, so every map is read
+        from its file the next time it is loaded.
+    */
+    public void clearMapTemplates() {
+        mapTemplates.clear();
+    }
+
+
+    /**
+        Parses a text map file. For each Sprite, an int array
+        {spawn type, tile x, tile y} is added to the spawns list.
+    */
+    private TileMap parseTextMap(String filename, List spawns)
+        throws IOException
     {
         ArrayList lines = new ArrayList();
         int width = 0;
@@ -161,69 +885,264 @@ public class ResourceManager {
         // parse the lines to create a TileEngine
         height = lines.size();
         TileMap newMap = new TileMap(width, height);
+        int[] tileIds = addTileImages(newMap);
         for (int y=0; y<height; y++) {
             String line = (String)lines.get(y);
             for (int x=0; x<line.length(); x++) {
-                char ch = line.charAt(x);
-
-                // check if the char represents tile A, B, C etc.
-                int tile = ch - 'A';
-                if (tile >= 0 && tile < tiles.size()) {
-                    newMap.setTile(x, y, (Image)tiles.get(tile));
+                int spawn = parseTile(newMap, tileIds,
+                    line.charAt(x), x, y);
+                if (spawn != -1) {
+                    spawns.add(new int[] { spawn, x, y });
                 }
+            }
+        }
+        return newMap;
+    }
 
-                // check if the char represents a sprite
-                else if (ch == 'o') {
-                	// add star !!!
-                    addSprite(newMap, coinSprite, x, y);
-                    //addSprite(newMap, mushroomSprite, x, y);
-                }
-                else if (ch == '!') {
-                    addSprite(newMap, musicSprite, x, y);
-                }
-                else if (ch == '*') {
-                    addSprite(newMap, goalSprite, x, y);
-                }
-                else if (ch == '1') {
-                    addSprite(newMap, grubSprite, x, y);
-                }
-                else if (ch == '2') {
-                    addSprite(newMap, flySprite, x, y);
-                }
-                else if (ch == '@'){
-                	// add mushroom !!!
-                	addSprite(newMap, mushroomSprite, x, y);
-                }
-                else if (ch == '$'){
-                	// add explode !!!
-                	addSprite(newMap, explodeSprite, x, y);
-                }    
-                else if (ch == '%'){
-                	// add gas !!!
-                	addSprite(newMap, gasSprite, x, y);
-                	tile = 0;
-                    newMap.setTile(x, y, (Image)tiles.get(tile));
-                   
-                }   
-            }
-        }
-
-        // add the player to the map
-        Sprite player = (Sprite)playerSprite.clone();
+
+    /**
+        Compiles a text map file to the binary map format read by
+        loadBinaryMap(). The binary file is big-endian:
+        <pre>
+        int     magic ('TMAP')
+        int     version
+        int     width, height (in tiles)
+        int     number of tile ids used
+        int     number of spawns
+        byte[]  tile ids of each chunk (CHUNK_WIDTH * height
+                bytes per chunk, row-major)
+        long[]  solid tile bits of each chunk (height longs per
+                chunk)
+        int[]   index of the first spawn of each chunk, plus the
+                total number of spawns
+        int[]   spawns ordered by chunk: type, tile x, tile y
+        </pre>
+        Tile id n is the nth tile image (tile_A.png is 1), and
+        the spawn type is an index into SPAWN_TYPES.
+    */
+    public void compileMap(String textFile, String binaryFile)
+        throws IOException
+    {
+        ArrayList spawns = new ArrayList();
+        TileMap map = parseTextMap(textFile, spawns);
+        int width = map.getWidth();
+        int height = map.getHeight();
+        int numChunks = map.getNumChunks();
+
+        // sort spawns by chunk
+        int[] chunkSpawns = new int[numChunks + 1];
+        for (int i=0; i<spawns.size(); i++) {
+            int[] spawn = (int[])spawns.get(i);
+            chunkSpawns[(spawn[1] / TileMap.CHUNK_WIDTH) + 1]++;
+        }
+        for (int i=0; i<numChunks; i++) {
+            chunkSpawns[i + 1] += chunkSpawns[i];
+        }
+        int[] spawnTable = new int[spawns.size() * 3];
+        int[] next = chunkSpawns.clone();
+        for (int i=0; i<spawns.size(); i++) {
+            int[] spawn = (int[])spawns.get(i);
+            int index = next[spawn[1] / TileMap.CHUNK_WIDTH]++;
+            System.arraycopy(spawn, 0, spawnTable, index * 3, 3);
+        }
+
+        int chunkSize = TileMap.CHUNK_WIDTH * height;
+        ByteBuffer buffer = ByteBuffer.allocate(MAP_HEADER_SIZE +
+            numChunks * chunkSize + numChunks * height * 8 +
+            chunkSpawns.length * 4 + spawnTable.length * 4);
+        buffer.putInt(MAP_FILE_MAGIC);
+        buffer.putInt(MAP_FILE_VERSION);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putInt(map.getPaletteSize() - 1);
+        buffer.putInt(spawns.size());
+        for (int i=0; i<numChunks; i++) {
+            map.getChunk(i, buffer, null);
+        }
+        LongBuffer solid = buffer.asLongBuffer();
+        for (int i=0; i<numChunks; i++) {
+            map.getChunk(i, null, solid);
+        }
+        buffer.position(buffer.position() + solid.position() * 8);
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.put(chunkSpawns);
+        ints.put(spawnTable);
+        buffer.clear();
+
+        FileOutputStream out = new FileOutputStream(binaryFile);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+
+    /**
+        Loads a map compiled with compileMap() whose chunks are
+        copied from the memory-mapped file as they are needed.
+        (Maps loaded entirely are copied into a MapTemplate.)
+    */
+    private TileMap loadBinaryMap(String filename)
+        throws IOException
+    {
+        BinaryChunkLoader loader = openBinaryMap(filename);
+        TileMap newMap = new TileMap(loader.getWidth(),
+            loader.getHeight(), loader, maxLoadedChunks);
+        addTileImages(newMap);
+        addPlayer(newMap);
+        return newMap;
+    }
+
+
+    /**
+        Memory-maps a compiled map file and checks its header.
+    */
+    private BinaryChunkLoader openBinaryMap(String filename)
+        throws IOException
+    {
+        MappedByteBuffer buffer;
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                channel.size());
+        }
+        finally {
+            // the mapping stays valid after the file is closed
+            file.close();
+        }
+
+        if (buffer.remaining() < MAP_HEADER_SIZE ||
+            buffer.getInt() != MAP_FILE_MAGIC ||
+            buffer.getInt() != MAP_FILE_VERSION)
+        {
+            throw new IOException("Not a compiled map: " + filename);
+        }
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int numTileIds = buffer.getInt();
+        if (numTileIds > tiles.size()) {
+            throw new IOException("Map uses missing tiles: " +
+                filename);
+        }
+        // the tiles, solid tile bits, and spawn table offsets
+        long numChunks = (width + TileMap.CHUNK_WIDTH - 1) /
+            TileMap.CHUNK_WIDTH;
+        long minSize = MAP_HEADER_SIZE +
+            numChunks * TileMap.CHUNK_WIDTH * height +
+            numChunks * height * 8 + (numChunks + 1) * 4;
+        if (width <= 0 || height <= 0 || buffer.limit() < minSize) {
+            throw new IOException("Truncated compiled map: " +
+                filename);
+        }
+        return new BinaryChunkLoader(buffer, width, height);
+    }
+
+
+    /**
+        Loads a map whose tiles are parsed one chunk at a time,
+        as they are needed. Only the position of each line in the
+        file is kept in memory.
+    */
+    private TileMap loadChunkedMap(String filename)
+        throws IOException
+    {
+        TextChunkLoader loader = new TextChunkLoader(filename);
+        TileMap newMap = new TileMap(loader.getWidth(),
+            loader.getHeight(), loader, maxLoadedChunks);
+        loader.setTileIds(addTileImages(newMap));
+        addPlayer(newMap);
+        return newMap;
+    }
+
+
+    /**
+        Adds the tile Images to a new map's palette. Returns the
+        tile id of each Image.
+    */
+    private int[] addTileImages(TileMap map) {
+        int[] tileIds = new int[tiles.size()];
+        for (int i=0; i<tileIds.length; i++) {
+            tileIds[i] = map.addTileImage((Image)tiles.get(i));
+        }
+        return tileIds;
+    }
+
+
+    /**
+        Adds the player to a new map.
+    */
+    private void addPlayer(TileMap map) {
+        Sprite player = spriteRegistry.create(Player.class);
         player.setX(TileMapRenderer.tilesToPixels(3));
         player.setY(0);
-        newMap.setPlayer(player);
+        map.setPlayer(player);
+        map.setBulletPool(bulletPool);
+    }
 
-        return newMap;
+
+    /**
+        Parses one character of a map file at the specified tile
+        location, setting the tile. Returns the index in
+        SPAWN_TYPES of the Sprite the character represents, or -1
+        if it isn't a Sprite.
+    */
+    private int parseTile(TileMap map, int[] tileIds, int ch,
+        int x, int y)
+    {
+        // check if the char represents tile A, B, C etc.
+        int tile = ch - 'A';
+        if (tile >= 0 && tile < tileIds.length) {
+            map.setTileId(x, y, tileIds[tile]);
+        }
+        else if (ch == '%') {
+            // a gas block is drawn over tile A
+            map.setTileId(x, y, tileIds[0]);
+        }
+
+        // check if the char represents a sprite
+        return SPAWN_CHARS.indexOf(ch);
+    }
+
+
+    /**
+        Sets the maximum number of chunks of each map kept in
+        memory. Maps loaded after this call only parse the
+        columns near the camera, so memory use doesn't depend on
+        the length of the map. Values below
+        TileMap.MIN_LOADED_CHUNKS are raised to it. Zero (the
+        default) loads every map entirely.
+    */
+    public void setMaxLoadedChunks(int maxLoadedChunks) {
+        this.maxLoadedChunks = maxLoadedChunks;
+    }
+
+
+    /**
+        Gets the maximum number of chunks of each map kept in
+        memory, or zero if maps are loaded entirely.
+    */
+    public int getMaxLoadedChunks() {
+        return maxLoadedChunks;
     }
 
 
+    /**
+        Creates a Sprite of the specified type and adds it to the
+        map, centered and bottom-justified in the specified tile.
+    */
     public void addSprite(TileMap map,
-        Sprite hostSprite, int tileX, int tileY)
+        Class type, int tileX, int tileY)
     {
-        if (hostSprite != null) {
-            // clone the sprite from the "host"
-            Sprite sprite = (Sprite)hostSprite.clone();
+        SpriteFactory factory = spriteRegistry.getFactory(type);
+        if (factory != null) {
+            // create the sprite
+            Sprite sprite = factory.create();
 
             // center the sprite
             sprite.setX(
@@ -236,36 +1155,31 @@ public class ResourceManager {
                 TileMapRenderer.tilesToPixels(tileY + 1) -
                 sprite.getHeight());
 
+            // start a clocked animation at a point in its loop
+            // that depends on the tile, so sprites of the same
+            // type don't animate in step
+            if (sprite.getAnimation() instanceof ClockedAnimation) {
+                ((ClockedAnimation)sprite.getAnimation()).setPhase(
+                    getSpawnPhase(tileX, tileY));
+            }
+
             // add it to the map
             map.addSprite(sprite);
         }
     }
-    
-    public void addBullet(TileMap map,
-            Bullet hostSprite, int tileX, int tileY, int direction)
-        {
-            if (hostSprite != null) {
-                // clone the sprite from the "host"
-                Bullet sprite = (Bullet)hostSprite.clone();
-
-                // center the sprite
-                sprite.setX(
-                    TileMapRenderer.tilesToPixels(tileX) +
-                    (TileMapRenderer.tilesToPixels(1) -
-                    sprite.getWidth()) / 2);
-
-                // bottom-justify the sprite
-                sprite.setY(
-                    TileMapRenderer.tilesToPixels(tileY + 1) -
-                    sprite.getHeight());
-                //sprite.setVelocityX(0.75f * direction);
-                // add it to the map
-                //map.addBullet(sprite);
-                map.addBullet(hostSprite);
-            }
-        }
 
 
+    /**
+        Gets the phase, in milliseconds, of a clocked animation
+        spawned at the specified tile: a hash of the tile
+        location. The same tile always gets the same phase.
+    */
+    private static long getSpawnPhase(int tileX, int tileY) {
+        int h = tileX * 73856093 ^ tileY * 19349663;
+        h ^= (h >>> 16);
+        return h & 0xffff;
+    }
+    
     // -----------------------------------------------------------
     // code for loading sprites and images
     // -----------------------------------------------------------
@@ -293,28 +1207,30 @@ public class ResourceManager {
         Image[][] images = new Image[4][];
 
         // load left-facing images
-        images[0] = new Image[] {
-            loadImage("player1.png"),
-            loadImage("player2.png"),
-            loadImage("player3.png"),
-            loadImage("fly1.png"),
-            loadImage("fly2.png"),
-            loadImage("fly3.png"),
-            loadImage("grub1.png"),
-            loadImage("grub2.png"),
-            loadImage("bullet.png")
+        String[] names = {
+            "player1.png", "player2.png", "player3.png",
+            "fly1.png", "fly2.png", "fly3.png",
+            "grub1.png", "grub2.png",
+            "bullet.png"
         };
+        images[0] = new Image[names.length];
+        for (int i=0; i<names.length; i++) {
+            images[0][i] = loadImage(names[i]);
+        }
 
-        images[1] = new Image[images[0].length];
-        images[2] = new Image[images[0].length];
-        images[3] = new Image[images[0].length];
+        // create the right-facing images, left-facing "dead"
+        // images, and right-facing "dead" images in parallel
+        Future[][] variants = new Future[4][images[0].length];
         for (int i=0; i<images[0].length; i++) {
-            // right-facing images
-            images[1][i] = getMirrorImage(images[0][i]);
-            // left-facing "dead" images
-            images[2][i] = getFlippedImage(images[0][i]);
-            // right-facing "dead" images
-            images[3][i] = getFlippedImage(images[1][i]);
+            variants[1][i] = transformImage(names[i], images[0][i], -1, 1);
+            variants[2][i] = transformImage(names[i], images[0][i], 1, -1);
+            variants[3][i] = transformImage(names[i], images[0][i], -1, -1);
+        }
+        for (int j=1; j<4; j++) {
+            images[j] = new Image[images[0].length];
+            for (int i=0; i<images[0].length; i++) {
+                images[j][i] = (Image)getResult(variants[j][i]);
+            }
         }
 
         // create creature animations
@@ -334,16 +1250,43 @@ public class ResourceManager {
             		images[i][8], images[i][8]);
         }
 
-        // create creature sprites
-        playerSprite = new Player(playerAnim[0], playerAnim[1],
-            playerAnim[2], playerAnim[3]);
-        flySprite = new Fly(flyAnim[0], flyAnim[1],
-            flyAnim[2], flyAnim[3]);
-        grubSprite = new Grub(grubAnim[0], grubAnim[1],
-            grubAnim[2], grubAnim[3]);
-        
-        bulletSprite = new Bullet(bulletAnim[0], bulletAnim[1],
-        		bulletAnim[2], bulletAnim[3]);
+        // create creature factories
+        spriteRegistry.register(Player.class,
+            new SpriteFactory(playerAnim) {
+                public Sprite create() {
+                    return new Player(cloneAnimation(0),
+                        cloneAnimation(1), cloneAnimation(2),
+                        cloneAnimation(3));
+                }
+            });
+        spriteRegistry.register(Fly.class,
+            new SpriteFactory(flyAnim) {
+                public Sprite create() {
+                    return new Fly(cloneAnimation(0),
+                        cloneAnimation(1), cloneAnimation(2),
+                        cloneAnimation(3));
+                }
+            });
+        spriteRegistry.register(Grub.class,
+            new SpriteFactory(grubAnim) {
+                public Sprite create() {
+                    return new Grub(cloneAnimation(0),
+                        cloneAnimation(1), cloneAnimation(2),
+                        cloneAnimation(3));
+                }
+            });
+        spriteRegistry.register(Bullet.class,
+            new SpriteFactory(bulletAnim) {
+                public Sprite create() {
+                    return new Bullet(cloneAnimation(0),
+                        cloneAnimation(1), cloneAnimation(2),
+                        cloneAnimation(3));
+                }
+            });
+
+        bulletPool = new BulletPool(
+            spriteRegistry.getFactory(Bullet.class),
+            BULLET_POOL_CAPACITY);
     }
 
 
@@ -351,12 +1294,12 @@ public class ResourceManager {
         Image player2, Image player3)
     {
         Animation anim = new Animation();
-        anim.addFrame(player1, 250);
-        anim.addFrame(player2, 150);
-        anim.addFrame(player1, 150);
-        anim.addFrame(player2, 150);
-        anim.addFrame(player3, 200);
-        anim.addFrame(player2, 150);
+        anim.addFrame(pack(player1), 250);
+        anim.addFrame(pack(player2), 150);
+        anim.addFrame(pack(player1), 150);
+        anim.addFrame(pack(player2), 150);
+        anim.addFrame(pack(player3), 200);
+        anim.addFrame(pack(player2), 150);
         return anim;
     }
 
@@ -365,25 +1308,25 @@ public class ResourceManager {
         Image img3)
     {
         Animation anim = new Animation();
-        anim.addFrame(img1, 50);
-        anim.addFrame(img2, 50);
-        anim.addFrame(img3, 50);
-        anim.addFrame(img2, 50);
+        anim.addFrame(pack(img1), 50);
+        anim.addFrame(pack(img2), 50);
+        anim.addFrame(pack(img3), 50);
+        anim.addFrame(pack(img2), 50);
         return anim;
     }
 
 
     private Animation createGrubAnim(Image img1, Image img2) {
         Animation anim = new Animation();
-        anim.addFrame(img1, 250);
-        anim.addFrame(img2, 250);
+        anim.addFrame(pack(img1), 250);
+        anim.addFrame(pack(img2), 250);
         return anim;
     }
     
     private Animation createBulletAnim(Image img1, Image img2){
     	Animation anim = new Animation();
-        anim.addFrame(img1, 250);
-        anim.addFrame(img2, 250);
+        anim.addFrame(pack(img1), 250);
+        anim.addFrame(pack(img2), 250);
         return anim;
     }
 
@@ -391,46 +1334,335 @@ public class ResourceManager {
     private void loadPowerUpSprites() {
         // create "goal" sprite
         Animation anim = new Animation();
-        anim.addFrame(loadImage("heart1.png"), 150);
-        anim.addFrame(loadImage("heart2.png"), 150);
-        anim.addFrame(loadImage("heart3.png"), 150);
-        anim.addFrame(loadImage("heart2.png"), 150);
-        goalSprite = new PowerUp.Goal(anim);
+        anim.addFrame(pack(loadImage("heart1.png")), 150);
+        anim.addFrame(pack(loadImage("heart2.png")), 150);
+        anim.addFrame(pack(loadImage("heart3.png")), 150);
+        anim.addFrame(pack(loadImage("heart2.png")), 150);
+        spriteRegistry.register(PowerUp.Goal.class,
+            new SpriteFactory(clocked(anim)) {
+                public Sprite create() {
+                    return new PowerUp.Goal(cloneAnimation(0));
+                }
+            });
 
         // create "star" sprite
         anim = new Animation();
-        anim.addFrame(loadImage("star1.png"), 100);
-        anim.addFrame(loadImage("star2.png"), 100);
-        anim.addFrame(loadImage("star3.png"), 100);
-        anim.addFrame(loadImage("star4.png"), 100);
-        coinSprite = new PowerUp.Star(anim);
+        anim.addFrame(pack(loadImage("star1.png")), 100);
+        anim.addFrame(pack(loadImage("star2.png")), 100);
+        anim.addFrame(pack(loadImage("star3.png")), 100);
+        anim.addFrame(pack(loadImage("star4.png")), 100);
+        spriteRegistry.register(PowerUp.Star.class,
+            new SpriteFactory(clocked(anim)) {
+                public Sprite create() {
+                    return new PowerUp.Star(cloneAnimation(0));
+                }
+            });
 
         // create "music" sprite
         anim = new Animation();
-        anim.addFrame(loadImage("music1.png"), 150);
-        anim.addFrame(loadImage("music2.png"), 150);
-        anim.addFrame(loadImage("music3.png"), 150);
-        anim.addFrame(loadImage("music2.png"), 150);
-        musicSprite = new PowerUp.Music(anim);
+        anim.addFrame(pack(loadImage("music1.png")), 150);
+        anim.addFrame(pack(loadImage("music2.png")), 150);
+        anim.addFrame(pack(loadImage("music3.png")), 150);
+        anim.addFrame(pack(loadImage("music2.png")), 150);
+        spriteRegistry.register(PowerUp.Music.class,
+            new SpriteFactory(clocked(anim)) {
+                public Sprite create() {
+                    return new PowerUp.Music(cloneAnimation(0));
+                }
+            });
         
         // create 'mushroom' sprite
         anim = new Animation();
-        anim.addFrame(loadImage("mushroom.png"), 350);
-        anim.addFrame(loadImage("mushroom2.png"), 350);
-        mushroomSprite = new PowerUp.Mushroom(anim);
+        anim.addFrame(pack(loadImage("mushroom.png")), 350);
+        anim.addFrame(pack(loadImage("mushroom2.png")), 350);
+        spriteRegistry.register(PowerUp.Mushroom.class,
+            new SpriteFactory(clocked(anim)) {
+                public Sprite create() {
+                    return new PowerUp.Mushroom(cloneAnimation(0));
+                }
+            });
     }
     
     private void loadSpecialBlockSprites() {
         Animation anim = new Animation();
         // create 'explode block' sprite
         anim = new Animation();
-        anim.addFrame(loadImage("explode.png"), 350);
-        explodeSprite = new SpecialBlock.Explode(anim);
+        anim.addFrame(pack(loadImage("explode.png")), 350);
+        spriteRegistry.register(SpecialBlock.Explode.class,
+            new SpriteFactory(clocked(anim)) {
+                public Sprite create() {
+                    return new SpecialBlock.Explode(cloneAnimation(0));
+                }
+            });
         
         // create 'gas block' sprite
         anim = new Animation();
-        anim.addFrame(loadImage("gas.png"), 350);
-        gasSprite = new SpecialBlock.Gas(anim);        
+        anim.addFrame(pack(loadImage("gas.png")), 350);
+        spriteRegistry.register(SpecialBlock.Gas.class,
+            new SpriteFactory(clocked(anim)) {
+                public Sprite create() {
+                    return new SpecialBlock.Gas(cloneAnimation(0));
+                }
+            });
+    }
+
+
+    /**
+        The TextChunkLoader class parses the tiles of a text map
+        file one chunk at a time. The file is memory-mapped and
+        scanned once to find the offset and length of each line;
+        when a chunk is loaded, only the chunk's columns of each
+        line are read from the mapping.
+    */
+    private class TextChunkLoader implements ChunkLoader {
+
+        private ByteBuffer buffer;
+        private int[] lineOffsets;
+        private int[] lineLengths;
+        private int width;
+        private int height;
+        private int[] tileIds;
+
+        public TextChunkLoader(String filename) throws IOException {
+            lineOffsets = new int[64];
+            lineLengths = new int[64];
+
+            // map the file once; chunks are read from the mapping
+            FileInputStream in = new FileInputStream(filename);
+            try {
+                FileChannel channel = in.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            }
+            finally {
+                in.close();
+            }
+
+            // find every line except for comments
+            int size = buffer.limit();
+            int offset = 0;
+            int lineStart = 0;
+            int length = 0;
+            boolean comment = false;
+            while (true) {
+                int ch = (offset < size) ?
+                    (buffer.get(offset) & 0xff) : -1;
+                if (ch == -1 || ch == '\n') {
+                    if (!comment && (ch != -1 || offset > lineStart)) {
+                        addLine(lineStart, length);
+                    }
+                    if (ch == -1) {
+                        break;
+                    }
+                    lineStart = offset + 1;
+                    length = 0;
+                    comment = false;
+                }
+                else if (ch != '\r') {
+                    if (length == 0 && offset == lineStart &&
+                        ch == '#')
+                    {
+                        comment = true;
+                    }
+                    length++;
+                }
+                offset++;
+            }
+        }
+
+
+        private void addLine(int offset, int length) {
+            if (height == lineOffsets.length) {
+                int[] newOffsets = new int[height * 2];
+                int[] newLengths = new int[height * 2];
+                System.arraycopy(lineOffsets, 0, newOffsets, 0, height);
+                System.arraycopy(lineLengths, 0, newLengths, 0, height);
+                lineOffsets = newOffsets;
+                lineLengths = newLengths;
+            }
+            lineOffsets[height] = offset;
+            lineLengths[height] = length;
+            height++;
+            width = Math.max(width, length);
+        }
+
+
+        public int getWidth() {
+            return width;
+        }
+
+
+        public int getHeight() {
+            return height;
+        }
+
+
+        public void setTileIds(int[] tileIds) {
+            this.tileIds = tileIds;
+        }
+
+
+        public void loadChunk(TileMap map, int chunk,
+            boolean firstLoad)
+        {
+            int fromX = chunk * TileMap.CHUNK_WIDTH;
+            for (int y=0; y<height; y++) {
+                int n = Math.min(TileMap.CHUNK_WIDTH,
+                    lineLengths[y] - fromX);
+                int offset = lineOffsets[y] + fromX;
+                for (int i=0; i<n; i++) {
+                    int spawn = parseTile(map, tileIds,
+                        buffer.get(offset + i) & 0xff, fromX + i, y);
+                    if (spawn != -1 && firstLoad) {
+                        addSprite(map, SPAWN_TYPES[spawn],
+                            fromX + i, y);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+        The BinaryChunkLoader class copies chunks from a
+        memory-mapped compiled map file into a TileMap.
+    */
+    private class BinaryChunkLoader implements ChunkLoader {
+
+        private ByteBuffer tileData;
+        private LongBuffer solidData;
+        private IntBuffer chunkSpawns;
+        private IntBuffer spawnTable;
+        private int width;
+        private int height;
+
+        public BinaryChunkLoader(ByteBuffer buffer, int width,
+            int height)
+        {
+            this.width = width;
+            this.height = height;
+            int numChunks = (width + TileMap.CHUNK_WIDTH - 1) /
+                TileMap.CHUNK_WIDTH;
+            int tileSize = numChunks * TileMap.CHUNK_WIDTH * height;
+
+            buffer.position(MAP_HEADER_SIZE);
+            tileData = buffer.slice();
+            buffer.position(MAP_HEADER_SIZE + tileSize);
+            solidData = buffer.slice().asLongBuffer();
+            buffer.position(MAP_HEADER_SIZE + tileSize +
+                numChunks * height * 8);
+            IntBuffer ints = buffer.slice().asIntBuffer();
+            chunkSpawns = ints.duplicate();
+            ints.position(numChunks + 1);
+            spawnTable = ints.slice();
+        }
+
+
+        public int getWidth() {
+            return width;
+        }
+
+
+        public int getHeight() {
+            return height;
+        }
+
+
+        /**
+            Gets the whole spawn table: spawn type, tile x, and
+            tile y of each Sprite.
+        */
+        public int[] getSpawns() {
+            int[] spawns = new int[spawnTable.limit()];
+            spawnTable.duplicate().get(spawns);
+            return spawns;
+        }
+
+
+        public void loadChunk(TileMap map, int chunk,
+            boolean firstLoad)
+        {
+            int chunkSize = TileMap.CHUNK_WIDTH * height;
+            ByteBuffer tiles = tileData.duplicate();
+            tiles.position(chunk * chunkSize);
+            tiles.limit((chunk + 1) * chunkSize);
+            LongBuffer solid = solidData.duplicate();
+            solid.position(chunk * height);
+            solid.limit((chunk + 1) * height);
+            map.setChunk(chunk, tiles, solid);
+
+            if (firstLoad) {
+                int end = chunkSpawns.get(chunk + 1);
+                for (int i=chunkSpawns.get(chunk); i<end; i++) {
+                    addSprite(map, SPAWN_TYPES[spawnTable.get(i * 3)],
+                        spawnTable.get(i * 3 + 1),
+                        spawnTable.get(i * 3 + 2));
+                }
+            }
+        }
+    }
+
+
+    /**
+        The parsed tiles and Sprite spawns of a map file. The
+        tiles are shared (copy on write) by every map created
+        from the template.
+    */
+    private static class MapTemplate {
+        TileMap tiles;
+        int[] spawns;
+    }
+
+
+    /**
+        The parse of a map file into a MapTemplate, which other
+        threads that need the same file wait for. lastModified is
+        the file's time when the parse started.
+    */
+    private static class TemplateLoad extends FutureTask {
+        final long lastModified;
+
+        public TemplateLoad(Callable callable, long lastModified) {
+            super(callable);
+            this.lastModified = lastModified;
+        }
+    }
+
+
+    /**
+        A loaded map and its map number.
+    */
+    private static class LoadedMap {
+        TileMap map;
+        int mapNumber;
+
+        public LoadedMap(TileMap map, int mapNumber) {
+            this.map = map;
+            this.mapNumber = mapNumber;
+        }
+    }
+
+
+    /**
+        Creates daemon threads with a name and priority, so
+        loading threads don't keep the VM running.
+    */
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private String name;
+        private int priority;
+
+        public DaemonThreadFactory(String name, int priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            return thread;
+        }
     }
-    
 }
@@ -0,0 +1,469 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The SpatialHash class is a uniform grid of Sprites, keyed by
+    tile cell, used to quickly find the Sprites near a location.
+    Each Sprite is stored in the cell that contains its upper-left
+    corner. Sprites must be updated with update() whenever they
+    move.
+    <p>Cells are stored in an open-addressing hash table with
+    primitive long keys. Cells that become empty are removed from
+    the table, so it only holds the cells that have Sprites. The
+    lists of removed cells and the entries of removed Sprites are
+    kept for reuse, so once they've been allocated, adding,
+    moving, removing, and finding Sprites don't allocate objects.
+    <p>The Sprites are also kept in the order they were added, so
+    a SpatialHash can hold a map's Sprites: iterator() visits them
+    in order, and removing a Sprite takes constant time.
+*/
+public class SpatialHash {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long EMPTY_KEY = Long.MIN_VALUE;
+
+    private long[] keys;
+    private ArrayList[] cells;
+    private int numCells;
+    // lists of removed cells, for reuse
+    private ArrayList freeCells;
+
+    // the Entry of each Sprite
+    private IdentityHashMap entries;
+    // the entries in the order they were added
+    private Entry head;
+    private Entry tail;
+    // entries of removed Sprites, for reuse
+    private Entry freeEntries;
+    private int modCount;
+
+    // the size of the largest Sprite, used to widen queries. It's
+    // found again when the largest Sprite is removed or shrinks.
+    private int maxWidth;
+    private int maxHeight;
+    private boolean maxSizeStale;
+
+    /**
+        Creates a new, empty SpatialHash.
+    */
+    public SpatialHash() {
+        entries = new IdentityHashMap();
+        freeCells = new ArrayList();
+        keys = new long[INITIAL_CAPACITY];
+        cells = new ArrayList[INITIAL_CAPACITY];
+        Arrays.fill(keys, EMPTY_KEY);
+    }
+
+
+    /**
+        Gets the number of Sprites in this SpatialHash.
+    */
+    public int size() {
+        return entries.size();
+    }
+
+
+    /**
+        Adds a Sprite at its current position. If the Sprite was
+        already added, it's only updated.
+    */
+    public void add(Sprite sprite) {
+        if (entries.containsKey(sprite)) {
+            update(sprite);
+            return;
+        }
+        Entry entry = freeEntries;
+        if (entry == null) {
+            entry = new Entry();
+        }
+        else {
+            freeEntries = entry.next;
+        }
+        entry.sprite = sprite;
+        entry.key = getKey(sprite);
+        entry.cell = getCell(entry.key, true);
+        entry.cell.add(sprite);
+        setSize(entry);
+
+        entry.prev = tail;
+        entry.next = null;
+        if (tail == null) {
+            head = entry;
+        }
+        else {
+            tail.next = entry;
+        }
+        tail = entry;
+        entries.put(sprite, entry);
+        modCount++;
+    }
+
+
+    /**
+        Removes a Sprite. Returns true if the Sprite was in this
+        SpatialHash.
+    */
+    public boolean remove(Sprite sprite) {
+        Entry entry = (Entry)entries.remove(sprite);
+        if (entry == null) {
+            return false;
+        }
+        removeEntry(entry);
+        return true;
+    }
+
+
+    /**
+        Moves a Sprite to the cell of its current position, if it
+        changed cells. Does nothing if the Sprite was not added.
+    */
+    public void update(Sprite sprite) {
+        Entry entry = (Entry)entries.get(sprite);
+        if (entry == null) {
+            return;
+        }
+        long key = getKey(sprite);
+        if (key != entry.key) {
+            removeFromCell(entry);
+            entry.key = key;
+            entry.cell = getCell(key, true);
+            entry.cell.add(sprite);
+        }
+        setSize(entry);
+    }
+
+
+    /**
+        Removes all Sprites.
+    */
+    public void clear() {
+        while (head != null) {
+            Entry entry = head;
+            head = entry.next;
+            freeEntry(entry);
+        }
+        tail = null;
+        entries.clear();
+        for (int i=0; i<cells.length; i++) {
+            if (cells[i] != null) {
+                cells[i].clear();
+                freeCells.add(cells[i]);
+                cells[i] = null;
+                keys[i] = EMPTY_KEY;
+            }
+        }
+        numCells = 0;
+        maxWidth = 0;
+        maxHeight = 0;
+        maxSizeStale = false;
+        modCount++;
+    }
+
+
+    /**
+        Gets an Iterator of the Sprites in the order they were
+        added. The Iterator can remove Sprites. Like the
+        Iterators of the java.util collections, it throws a
+        ConcurrentModificationException if Sprites are added or
+        removed other than by the Iterator.
+    */
+    public Iterator iterator() {
+        return new EntryIterator();
+    }
+
+
+    /**
+        Adds every Sprite that may overlap the specified Sprite
+        to the result list. Sprites are only included if they are
+        in a cell near the Sprite, so the result may include
+        Sprites that don't actually overlap.
+    */
+    public void getNearby(Sprite sprite, List result) {
+        getNearby(
+            Math.round(sprite.getX()), Math.round(sprite.getY()),
+            sprite.getWidth(), sprite.getHeight(), result);
+    }
+
+
+    /**
+        Adds every Sprite that may overlap the specified
+        rectangle (in pixels) to the result list.
+    */
+    public void getNearby(int x, int y, int width, int height,
+        List result)
+    {
+        if (entries.isEmpty()) {
+            return;
+        }
+        if (maxSizeStale) {
+            findMaxSize();
+        }
+        // a Sprite overlaps if its upper-left corner is within
+        // this range
+        int fromCellX = TileMapRenderer.pixelsToTiles(x - maxWidth + 1);
+        int fromCellY = TileMapRenderer.pixelsToTiles(y - maxHeight + 1);
+        int toCellX = TileMapRenderer.pixelsToTiles(x + width - 1);
+        int toCellY = TileMapRenderer.pixelsToTiles(y + height - 1);
+
+        for (int cx=fromCellX; cx<=toCellX; cx++) {
+            for (int cy=fromCellY; cy<=toCellY; cy++) {
+                ArrayList cell = getCell(getKey(cx, cy), false);
+                if (cell != null) {
+                    for (int i=0; i<cell.size(); i++) {
+                        result.add(cell.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+        Records the Sprite's current size in its entry, and
+        widens the largest size if needed.
+    */
+    private void setSize(Entry entry) {
+        int width = entry.sprite.getWidth();
+        int height = entry.sprite.getHeight();
+        if ((width < entry.width && entry.width >= maxWidth) ||
+            (height < entry.height && entry.height >= maxHeight))
+        {
+            maxSizeStale = true;
+        }
+        entry.width = width;
+        entry.height = height;
+        maxWidth = Math.max(maxWidth, width);
+        maxHeight = Math.max(maxHeight, height);
+    }
+
+
+    /**
+        Finds the size of the largest Sprite.
+    */
+    private void findMaxSize() {
+        maxWidth = 0;
+        maxHeight = 0;
+        for (Entry entry=head; entry!=null; entry=entry.next) {
+            maxWidth = Math.max(maxWidth, entry.width);
+            maxHeight = Math.max(maxHeight, entry.height);
+        }
+        maxSizeStale = false;
+    }
+
+
+    /**
+        Removes an entry (already removed from the entries map)
+        from its cell and from the list of entries, and keeps it
+        for reuse.
+    */
+    private void removeEntry(Entry entry) {
+        removeFromCell(entry);
+        if (entry.width >= maxWidth || entry.height >= maxHeight) {
+            maxSizeStale = true;
+        }
+        if (entry.prev == null) {
+            head = entry.next;
+        }
+        else {
+            entry.prev.next = entry.next;
+        }
+        if (entry.next == null) {
+            tail = entry.prev;
+        }
+        else {
+            entry.next.prev = entry.prev;
+        }
+        freeEntry(entry);
+        modCount++;
+    }
+
+
+    private void freeEntry(Entry entry) {
+        entry.sprite = null;
+        entry.cell = null;
+        entry.prev = null;
+        entry.width = 0;
+        entry.height = 0;
+        entry.next = freeEntries;
+        freeEntries = entry;
+    }
+
+
+    /**
+        Removes an entry's Sprite from its cell, and removes the
+        cell if it's empty.
+    */
+    private void removeFromCell(Entry entry) {
+        entry.cell.remove(entry.sprite);
+        if (entry.cell.isEmpty()) {
+            removeCell(entry.key);
+        }
+    }
+
+
+    private static long getKey(Sprite sprite) {
+        return getKey(
+            TileMapRenderer.pixelsToTiles(sprite.getX()),
+            TileMapRenderer.pixelsToTiles(sprite.getY()));
+    }
+
+
+    private static long getKey(int cellX, int cellY) {
+        return ((long)cellX << 32) | (cellY & 0xffffffffL);
+    }
+
+
+    /**
+        Gets the list of Sprites in the cell with the specified
+        key. If create is true, the cell is created if it doesn't
+        exist; otherwise, null is returned.
+    */
+    private ArrayList getCell(long key, boolean create) {
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        while (keys[index] != EMPTY_KEY) {
+            if (keys[index] == key) {
+                return cells[index];
+            }
+            index = (index + 1) & mask;
+        }
+        if (!create) {
+            return null;
+        }
+
+        // keep the table at most half full
+        if ((numCells + 1) * 2 > keys.length) {
+            grow();
+            return getCell(key, true);
+        }
+        keys[index] = key;
+        if (freeCells.isEmpty()) {
+            cells[index] = new ArrayList();
+        }
+        else {
+            cells[index] = (ArrayList)freeCells.remove(
+                freeCells.size() - 1);
+        }
+        numCells++;
+        return cells[index];
+    }
+
+
+    /**
+        Removes the (empty) cell with the specified key. The
+        cells after it in its probe sequence are shifted back, so
+        lookups never need to skip deleted cells.
+    */
+    private void removeCell(long key) {
+        int mask = keys.length - 1;
+        int hole = hash(key) & mask;
+        while (keys[hole] != key) {
+            hole = (hole + 1) & mask;
+        }
+        freeCells.add(cells[hole]);
+
+        int index = (hole + 1) & mask;
+        while (keys[index] != EMPTY_KEY) {
+            // move the cell into the hole if the hole is between
+            // the cell's home slot and its slot
+            int home = hash(keys[index]) & mask;
+            if (((index - home) & mask) >= ((index - hole) & mask)) {
+                keys[hole] = keys[index];
+                cells[hole] = cells[index];
+                hole = index;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[hole] = EMPTY_KEY;
+        cells[hole] = null;
+        numCells--;
+    }
+
+
+    private void grow() {
+        long[] oldKeys = keys;
+        ArrayList[] oldCells = cells;
+        keys = new long[oldKeys.length * 2];
+        cells = new ArrayList[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY_KEY);
+
+        int mask = keys.length - 1;
+        for (int i=0; i<oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY_KEY) {
+                int index = hash(oldKeys[i]) & mask;
+                while (keys[index] != EMPTY_KEY) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                cells[index] = oldCells[i];
+            }
+        }
+    }
+
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+
+    private static class Entry {
+        Sprite sprite;
+        long key;
+        ArrayList cell;
+        int width;
+        int height;
+        Entry prev;
+        Entry next;
+    }
+
+
+    /**
+        An Iterator over the entries in the order they were
+        added.
+    */
+    private class EntryIterator implements Iterator {
+
+        private Entry next = head;
+        private Entry current;
+        private int expectedModCount = modCount;
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Object next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = next.next;
+            return current.sprite;
+        }
+
+        public void remove() {
+            if (current == null) {
+                throw new IllegalStateException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            entries.remove(current.sprite);
+            removeEntry(current);
+            current = null;
+            expectedModCount = modCount;
+        }
+    }
+}
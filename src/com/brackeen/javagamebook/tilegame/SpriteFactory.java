@@ -0,0 +1,52 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.Animation;
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    A SpriteFactory creates new Sprites of one type from a set of
+    "host" Animations. Each new Sprite gets its own clones of the
+    Animations (which share their frames), so each Sprite can be
+    animated independently.
+    <p>Subclasses implement create() by calling the Sprite's
+    constructor directly with clones from cloneAnimation(), which
+    is much faster than cloning a host Sprite with reflection.
+*/
+public abstract class SpriteFactory {
+
+    private Animation[] anims;
+
+    /**
+        Creates a new SpriteFactory with the specified host
+        Animations, in the order the Sprite's constructor takes
+        them.
+    */
+    public SpriteFactory(Animation[] anims) {
+        this.anims = anims;
+    }
+
+
+    /**
+        Creates a new SpriteFactory for Sprites that take a
+        single Animation.
+    */
+    public SpriteFactory(Animation anim) {
+        this(new Animation[] { anim });
+    }
+
+
+    /**
+        Creates a new Sprite with clones of the host Animations.
+        This method should be implemented by subclasses.
+    */
+    public abstract Sprite create();
+
+
+    /**
+        Gets a clone of the host Animation at the specified index,
+        for a new Sprite.
+    */
+    protected Animation cloneAnimation(int index) {
+        return (Animation)anims[index].clone();
+    }
+}
@@ -0,0 +1,55 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.util.HashMap;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The SpriteRegistry class keeps a SpriteFactory for each type
+    (class) of Sprite, so new Sprites can be created by type.
+*/
+public class SpriteRegistry {
+
+    private HashMap factories;
+
+    /**
+        Creates a new, empty SpriteRegistry.
+    */
+    public SpriteRegistry() {
+        factories = new HashMap();
+    }
+
+
+    /**
+        Registers the SpriteFactory used to create Sprites of the
+        specified class. Replaces any existing factory for the
+        class.
+    */
+    public void register(Class type, SpriteFactory factory) {
+        factories.put(type, factory);
+    }
+
+
+    /**
+        Gets the SpriteFactory for the specified class, or null
+        if none is registered.
+    */
+    public SpriteFactory getFactory(Class type) {
+        return (SpriteFactory)factories.get(type);
+    }
+
+
+    /**
+        Creates a new Sprite of the specified class.
+        @throws IllegalArgumentException if no SpriteFactory is
+        registered for the class.
+    */
+    public Sprite create(Class type) {
+        SpriteFactory factory = getFactory(type);
+        if (factory == null) {
+            throw new IllegalArgumentException(
+                "No SpriteFactory for " + type.getName());
+        }
+        return factory.create();
+    }
+}
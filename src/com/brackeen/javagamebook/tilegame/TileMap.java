@@ -1,32 +1,192 @@
 package com.brackeen.javagamebook.tilegame;
 
 import java.awt.Image;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import com.brackeen.javagamebook.tilegame.sprites.Bullet;
 import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.events.SpriteSpawnEvent;
 
 /**
     The TileMap class contains the data for a tile-based
-    map, including Sprites. Each tile is a reference to an
-    Image. Of course, Images are used multiple times in the tile
-    map.
+    map, including Sprites. Each tile is an id into a palette of
+    Images, stored as bytes. Id 0 is an empty tile, so up to 255
+    different tile Images can be used in one map.
+    <p>Tiles are stored in chunks of CHUNK_WIDTH columns. Each
+    chunk is a byte array in row-major order, plus a bitset of
+    solid (non-empty) tiles with one long for each row, so spans
+    of columns can be tested a word at a time.
+    <p>A map created with a ChunkLoader only keeps some chunks in
+    memory. Chunks are loaded when they are first needed (or
+    ahead of time with prepareChunks()), and the least recently
+    used chunks are evicted when more than the maximum number of
+    chunks are loaded. At least MIN_LOADED_CHUNKS are kept, the
+    number prepareChunks() is asked for around a view up to a
+    chunk wide, so chunks aren't evicted and reloaded every frame
+    while scrolling. Tiles changed with setTile() or
+    setTileId() are also kept in a short list of edits for each
+    chunk, which is applied again when the chunk is reloaded, so
+    changed chunks can be evicted too. The Sprites in chunks far
+    behind the prepared columns are released, and they aren't
+    spawned again if those chunks are reloaded, so memory use
+    doesn't grow with how far the player travels.
+    <p>Each chunk also has a bitset of the rows that have any
+    solid tiles, so tall, sparse maps can be drawn without
+    visiting empty rows.
+    <p>Sprites and bullets are kept in SpatialHashes, so the
+    Sprites near a location can be found quickly and Sprites are
+    removed in constant time. Call updateSprite() or
+    updateBullet() after moving one.
 */
 public class TileMap {
 
-    private Image[][] tiles;
-    private LinkedList sprites;
+    /**
+        The tile id of an empty tile.
+    */
+    public static final int EMPTY_TILE = 0;
+
+    /**
+        The number of columns in a chunk. This is the number of
+        bits in a long, so each row of a chunk's solid tile
+        bitset is one long.
+    */
+    public static final int CHUNK_WIDTH = 64;
+    private static final int CHUNK_WIDTH_BITS = 6;
+
+    /**
+        The minimum number of chunks kept in memory by a map that
+        uses a ChunkLoader. Renderers prepare the columns on
+        screen plus a chunk on each side, which spans at most four
+        chunks if the screen is no wider than a chunk.
+    */
+    public static final int MIN_LOADED_CHUNKS = 4;
+
+    // the Sprites of chunks this many chunks before the prepared
+    // columns are released
+    private static final int RELEASE_DISTANCE = 4;
+
+    private static final int MAX_TILE_IDS = 256;
+
+    private int width;
+    private int height;
+    private Image[] palette;
+    private int paletteSize;
+    private IdentityHashMap paletteIds;
     private Sprite player;
-    private LinkedList bullets;
+    private SpatialHash spriteIndex;
+    private SpatialHash bulletIndex;
+    private BulletPool bulletPool;
+
+    // tile chunks. A null chunk isn't loaded.
+    private byte[][] chunkTiles;
+    private long[][] chunkSolid;
+    // bit y is set if row y of a chunk has a solid tile
+    private long[][] chunkRows;
+    private int rowWords;
+    private ChunkLoader chunkLoader;
+    private int maxLoadedChunks;
+    // tiles changed in each chunk, as (tile index << 8) | id
+    private int[][] chunkEdits;
+    private int[] numChunkEdits;
+    private boolean[] chunkSeen;
+    private long[] chunkLastUsed;
+    private long useCount;
+    // the Sprites of chunks before this one were released
+    private int releasedChunks;
+    private int[] loadedChunks;
+    private int numLoadedChunks;
+    private boolean loadingChunk;
+    // incremented when a chunk's tiles change
+    private int[] chunkVersions;
+    // chunks shared with a template map
+    private boolean[] chunkShared;
 
     /**
         Creates a new TileMap with the specified width and
-        height (in number of tiles) of the map.
+        height (in number of tiles) of the map. All tiles are
+        kept in memory.
     */
     public TileMap(int width, int height) {
-        tiles = new Image[width][height];
-        sprites = new LinkedList();
-        bullets = new LinkedList();
+        this(width, height, null, 0);
+    }
+
+
+    /**
+        Creates a new TileMap with the specified width and height
+        whose tiles are loaded in chunks by the specified
+        ChunkLoader. At most maxLoadedChunks chunks are kept in
+        memory (at least MIN_LOADED_CHUNKS).
+    */
+    public TileMap(int width, int height, ChunkLoader chunkLoader,
+        int maxLoadedChunks)
+    {
+        this.width = width;
+        this.height = height;
+        this.chunkLoader = chunkLoader;
+        palette = new Image[16];
+        paletteSize = 1;
+        paletteIds = new IdentityHashMap();
+        spriteIndex = new SpatialHash();
+        bulletIndex = new SpatialHash();
+
+        int numChunks = (width + CHUNK_WIDTH - 1) >> CHUNK_WIDTH_BITS;
+        chunkTiles = new byte[numChunks][];
+        chunkSolid = new long[numChunks][];
+        chunkRows = new long[numChunks][];
+        rowWords = (height + 63) >> 6;
+        chunkVersions = new int[numChunks];
+        if (chunkLoader == null) {
+            for (int i=0; i<numChunks; i++) {
+                chunkTiles[i] = new byte[CHUNK_WIDTH * height];
+                chunkSolid[i] = new long[height];
+                chunkRows[i] = new long[rowWords];
+            }
+        }
+        else {
+            this.maxLoadedChunks = Math.max(maxLoadedChunks,
+                MIN_LOADED_CHUNKS);
+            chunkEdits = new int[numChunks][];
+            numChunkEdits = new int[numChunks];
+            chunkSeen = new boolean[numChunks];
+            chunkLastUsed = new long[numChunks];
+            loadedChunks = new int[this.maxLoadedChunks + 1];
+        }
+    }
+
+
+    /**
+        Creates a new TileMap with the same size, palette, and
+        tiles as the specified template map, but with no Sprites.
+        The tile chunks are shared with the template until this
+        map changes them, so creating the map is cheap. The
+        template must have all its chunks in memory (it can't use
+        a ChunkLoader), and it shouldn't be changed after it is
+        used as a template.
+    */
+    public TileMap(TileMap template) {
+        if (template.chunkLoader != null) {
+            throw new IllegalArgumentException(
+                "Template map uses a ChunkLoader");
+        }
+        width = template.width;
+        height = template.height;
+        spriteIndex = new SpatialHash();
+        bulletIndex = new SpatialHash();
+        palette = template.palette.clone();
+        paletteSize = template.paletteSize;
+        paletteIds = (IdentityHashMap)template.paletteIds.clone();
+        chunkTiles = template.chunkTiles.clone();
+        chunkSolid = template.chunkSolid.clone();
+        chunkRows = template.chunkRows.clone();
+        rowWords = template.rowWords;
+        chunkVersions = new int[chunkTiles.length];
+        chunkShared = new boolean[chunkTiles.length];
+        Arrays.fill(chunkShared, true);
     }
 
 
@@ -34,7 +194,7 @@ public class TileMap {
         Gets the width of this TileMap (number of tiles across).
     */
     public int getWidth() {
-        return tiles.length;
+        return width;
     }
 
 
@@ -42,7 +202,7 @@ public class TileMap {
         Gets the height of this TileMap (number of tiles down).
     */
     public int getHeight() {
-        return tiles[0].length;
+        return height;
     }
 
 
@@ -52,22 +212,503 @@ public class TileMap {
         bounds.
     */
     public Image getTile(int x, int y) {
-        if (x < 0 || x >= getWidth() ||
-            y < 0 || y >= getHeight())
-        {
-            return null;
+        return palette[getTileId(x, y)];
+    }
+
+
+    /**
+        Sets the tile at the specified location. The Image is
+        added to the palette if it isn't already in it.
+    */
+    public void setTile(int x, int y, Image tile) {
+        setTileId(x, y, addTileImage(tile));
+    }
+
+
+    /**
+        Gets the id of the tile at the specified location.
+        Returns EMPTY_TILE if no tile is at the location or if the
+        location is out of bounds.
+    */
+    public int getTileId(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return EMPTY_TILE;
+        }
+        int chunk = x >> CHUNK_WIDTH_BITS;
+        byte[] tiles = chunkTiles[chunk];
+        if (tiles == null) {
+            tiles = loadChunk(chunk);
+        }
+        return tiles[(y << CHUNK_WIDTH_BITS) + (x & (CHUNK_WIDTH - 1))]
+            & 0xff;
+    }
+
+
+    /**
+        Sets the id of the tile at the specified location. The id
+        should be EMPTY_TILE or an id returned by addTileImage().
+    */
+    public void setTileId(int x, int y, int id) {
+        int chunk = x >> CHUNK_WIDTH_BITS;
+        byte[] tiles = chunkTiles[chunk];
+        if (tiles == null) {
+            tiles = loadChunk(chunk);
+        }
+        int index = (y << CHUNK_WIDTH_BITS) + (x & (CHUNK_WIDTH - 1));
+        if (!loadingChunk) {
+            chunkVersions[chunk]++;
+            if (chunkEdits != null) {
+                addEdit(chunk, index, id);
+            }
+        }
+        if (chunkShared != null && chunkShared[chunk]) {
+            tiles = unshareChunk(chunk);
+        }
+        tiles[index] = (byte)id;
+        long[] solid = chunkSolid[chunk];
+        if (id == EMPTY_TILE) {
+            solid[y] &= ~(1L << x);
+        }
+        else {
+            solid[y] |= (1L << x);
+        }
+        if (solid[y] == 0) {
+            chunkRows[chunk][y >> 6] &= ~(1L << y);
         }
         else {
-            return tiles[x][y];
+            chunkRows[chunk][y >> 6] |= (1L << y);
         }
     }
 
 
     /**
-        Sets the tile at the specified location.
+        Checks if the tile at the specified location is solid.
+        Locations out of bounds are not solid.
     */
-    public void setTile(int x, int y, Image tile) {
-        tiles[x][y] = tile;
+    public boolean isSolid(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return false;
+        }
+        return (getSolidBits(x >> CHUNK_WIDTH_BITS, y) & (1L << x))
+            != 0;
+    }
+
+
+    /**
+        Gets the solid tile bits of row y of a chunk.
+    */
+    private long getSolidBits(int chunk, int y) {
+        long[] solid = chunkSolid[chunk];
+        if (solid == null) {
+            loadChunk(chunk);
+            solid = chunkSolid[chunk];
+        }
+        return solid[y];
+    }
+
+
+    /**
+        Gets the first (leftmost) solid tile in row y between
+        columns fromX and toX, inclusive. Returns -1 if there is
+        no solid tile in the span. Columns out of bounds are
+        ignored. The span is tested 64 columns at a time.
+    */
+    public int getFirstSolidTile(int y, int fromX, int toX) {
+        if (y < 0 || y >= height) {
+            return -1;
+        }
+        fromX = Math.max(fromX, 0);
+        toX = Math.min(toX, width - 1);
+        if (fromX > toX) {
+            return -1;
+        }
+
+        int w = fromX >> CHUNK_WIDTH_BITS;
+        int lastW = toX >> CHUNK_WIDTH_BITS;
+        // mask off columns before fromX
+        long bits = getSolidBits(w, y) & (-1L << fromX);
+        while (true) {
+            if (w == lastW) {
+                // mask off columns after toX
+                bits &= (-1L >>> (63 - (toX & 63)));
+            }
+            if (bits != 0) {
+                return (w << CHUNK_WIDTH_BITS) +
+                    Long.numberOfTrailingZeros(bits);
+            }
+            if (w == lastW) {
+                return -1;
+            }
+            w++;
+            bits = getSolidBits(w, y);
+        }
+    }
+
+
+    /**
+        Gets the last (rightmost) solid tile in row y between
+        columns fromX and toX, inclusive. Returns -1 if there is
+        no solid tile in the span.
+    */
+    public int getLastSolidTile(int y, int fromX, int toX) {
+        if (y < 0 || y >= height) {
+            return -1;
+        }
+        fromX = Math.max(fromX, 0);
+        toX = Math.min(toX, width - 1);
+        if (fromX > toX) {
+            return -1;
+        }
+
+        int w = toX >> CHUNK_WIDTH_BITS;
+        int firstW = fromX >> CHUNK_WIDTH_BITS;
+        // mask off columns after toX
+        long bits = getSolidBits(w, y) & (-1L >>> (63 - (toX & 63)));
+        while (true) {
+            if (w == firstW) {
+                // mask off columns before fromX
+                bits &= (-1L << fromX);
+            }
+            if (bits != 0) {
+                return (w << CHUNK_WIDTH_BITS) + 63 -
+                    Long.numberOfLeadingZeros(bits);
+            }
+            if (w == firstW) {
+                return -1;
+            }
+            w--;
+            bits = getSolidBits(w, y);
+        }
+    }
+
+
+    /**
+        Gets the first row between fromY and toY, inclusive, that
+        has a solid tile in the specified chunk. Returns -1 if
+        every row in the span is empty. Renderers use this to skip
+        empty rows.
+    */
+    public int getNextOccupiedRow(int chunk, int fromY, int toY) {
+        fromY = Math.max(fromY, 0);
+        toY = Math.min(toY, height - 1);
+        if (fromY > toY) {
+            return -1;
+        }
+        long[] rows = chunkRows[chunk];
+        if (rows == null) {
+            loadChunk(chunk);
+            rows = chunkRows[chunk];
+        }
+
+        int w = fromY >> 6;
+        int lastW = toY >> 6;
+        // mask off rows before fromY
+        long bits = rows[w] & (-1L << fromY);
+        while (true) {
+            if (w == lastW) {
+                // mask off rows after toY
+                bits &= (-1L >>> (63 - (toY & 63)));
+            }
+            if (bits != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            if (w == lastW) {
+                return -1;
+            }
+            w++;
+            bits = rows[w];
+        }
+    }
+
+
+    /**
+        Makes sure the chunks covering columns fromX to toX are
+        loaded, and marks them as recently used. Renderers call
+        this with the columns near the camera so chunks are
+        loaded before they are needed and distant chunks are
+        evicted first. The Sprites of chunks more than
+        RELEASE_DISTANCE chunks before fromX are released. Does
+        nothing if this map doesn't use a ChunkLoader.
+    */
+    public void prepareChunks(int fromX, int toX) {
+        if (chunkLoader == null) {
+            return;
+        }
+        int fromChunk = Math.max(fromX, 0) >> CHUNK_WIDTH_BITS;
+        int toChunk = Math.min(toX, width - 1) >> CHUNK_WIDTH_BITS;
+        for (int i=fromChunk; i<=toChunk; i++) {
+            if (chunkTiles[i] == null) {
+                loadChunk(i);
+            }
+            else {
+                chunkLastUsed[i] = ++useCount;
+            }
+        }
+        while (releasedChunks < fromChunk - RELEASE_DISTANCE) {
+            releaseSprites(releasedChunks++);
+        }
+    }
+
+
+    /**
+        Removes the Sprites whose upper-left corner is in the
+        specified chunk. The chunk is marked as seen, so its
+        Sprites aren't spawned again if it's loaded later.
+    */
+    private void releaseSprites(int chunk) {
+        int fromX = chunk << CHUNK_WIDTH_BITS;
+        int toX = fromX + CHUNK_WIDTH;
+        ArrayList sprites = new ArrayList();
+        spriteIndex.getNearby(TileMapRenderer.tilesToPixels(fromX),
+            0, TileMapRenderer.tilesToPixels(CHUNK_WIDTH),
+            TileMapRenderer.tilesToPixels(height), sprites);
+        for (int i=0; i<sprites.size(); i++) {
+            Sprite sprite = (Sprite)sprites.get(i);
+            int x = TileMapRenderer.pixelsToTiles(sprite.getX());
+            if (x >= fromX && x < toX) {
+                spriteIndex.remove(sprite);
+            }
+        }
+        chunkSeen[chunk] = true;
+    }
+
+
+    /**
+        Gets the number of chunks in this map, including chunks
+        that aren't loaded.
+    */
+    public int getNumChunks() {
+        return chunkTiles.length;
+    }
+
+
+    /**
+        Gets the version of a chunk's tiles, which changes every
+        time a tile in the chunk is set (but not when the chunk is
+        loaded by a ChunkLoader). Used to know when images of the
+        tiles need to be redrawn.
+    */
+    public int getChunkVersion(int chunk) {
+        return chunkVersions[chunk];
+    }
+
+
+    /**
+        Copies the tile ids and solid tile bits of a chunk to the
+        specified buffers. The tile ids are CHUNK_WIDTH * height
+        bytes in row-major order, and the solid tile bits are one
+        long for each row. Either buffer may be null.
+    */
+    public void getChunk(int chunk, ByteBuffer tiles, LongBuffer solid) {
+        if (chunkTiles[chunk] == null) {
+            loadChunk(chunk);
+        }
+        if (tiles != null) {
+            tiles.put(chunkTiles[chunk]);
+        }
+        if (solid != null) {
+            solid.put(chunkSolid[chunk]);
+        }
+    }
+
+
+    /**
+        Sets the tile ids and solid tile bits of a chunk from the
+        specified buffers, in the format written by getChunk().
+        The solid tile bits must match the tile ids.
+    */
+    public void setChunk(int chunk, ByteBuffer tiles, LongBuffer solid) {
+        if (chunkTiles[chunk] == null) {
+            loadChunk(chunk);
+        }
+        if (chunkShared != null && chunkShared[chunk]) {
+            unshareChunk(chunk);
+        }
+        tiles.get(chunkTiles[chunk]);
+        solid.get(chunkSolid[chunk]);
+        if (!loadingChunk) {
+            chunkVersions[chunk]++;
+            if (chunkEdits != null) {
+                // every tile may have changed
+                byte[] chunkTileIds = chunkTiles[chunk];
+                numChunkEdits[chunk] = 0;
+                for (int i=0; i<chunkTileIds.length; i++) {
+                    appendEdit(chunk, i, chunkTileIds[i] & 0xff);
+                }
+            }
+        }
+
+        long[] rows = chunkRows[chunk];
+        long[] solidBits = chunkSolid[chunk];
+        for (int y=0; y<height; y++) {
+            if (solidBits[y] == 0) {
+                rows[y >> 6] &= ~(1L << y);
+            }
+            else {
+                rows[y >> 6] |= (1L << y);
+            }
+        }
+    }
+
+
+    /**
+        Copies a chunk shared with a template map, so it can be
+        changed.
+    */
+    private byte[] unshareChunk(int chunk) {
+        chunkTiles[chunk] = chunkTiles[chunk].clone();
+        chunkSolid[chunk] = chunkSolid[chunk].clone();
+        chunkRows[chunk] = chunkRows[chunk].clone();
+        chunkShared[chunk] = false;
+        return chunkTiles[chunk];
+    }
+
+
+    /**
+        Gets the number of chunks currently in memory.
+    */
+    public int getNumLoadedChunks() {
+        return (chunkLoader == null) ? chunkTiles.length :
+            numLoadedChunks;
+    }
+
+
+    /**
+        Loads a chunk with the ChunkLoader, evicting the least
+        recently used chunk if too many chunks are loaded.
+    */
+    private byte[] loadChunk(int chunk) {
+        if (numLoadedChunks == maxLoadedChunks) {
+            evictChunk();
+        }
+        byte[] tiles = new byte[CHUNK_WIDTH * height];
+        chunkTiles[chunk] = tiles;
+        chunkSolid[chunk] = new long[height];
+        chunkRows[chunk] = new long[rowWords];
+        chunkLastUsed[chunk] = ++useCount;
+        loadedChunks[numLoadedChunks++] = chunk;
+
+        loadingChunk = true;
+        try {
+            chunkLoader.loadChunk(this, chunk, !chunkSeen[chunk]);
+
+            // apply the changes made since the chunk was first
+            // loaded
+            int[] edits = chunkEdits[chunk];
+            int fromX = chunk << CHUNK_WIDTH_BITS;
+            for (int i=0; i<numChunkEdits[chunk]; i++) {
+                int index = edits[i] >>> 8;
+                setTileId(fromX + (index & (CHUNK_WIDTH - 1)),
+                    index >> CHUNK_WIDTH_BITS, edits[i] & 0xff);
+            }
+        }
+        finally {
+            loadingChunk = false;
+        }
+        chunkSeen[chunk] = true;
+        return tiles;
+    }
+
+
+    /**
+        Records that the tile at the specified index of a chunk
+        was set, replacing any earlier edit of the same tile.
+    */
+    private void addEdit(int chunk, int index, int id) {
+        int[] edits = chunkEdits[chunk];
+        for (int i=0; i<numChunkEdits[chunk]; i++) {
+            if ((edits[i] >>> 8) == index) {
+                edits[i] = (index << 8) | id;
+                return;
+            }
+        }
+        appendEdit(chunk, index, id);
+    }
+
+
+    private void appendEdit(int chunk, int index, int id) {
+        int[] edits = chunkEdits[chunk];
+        int numEdits = numChunkEdits[chunk];
+        if (edits == null || numEdits == edits.length) {
+            int[] newEdits = new int[Math.max(numEdits * 2, 4)];
+            if (edits != null) {
+                System.arraycopy(edits, 0, newEdits, 0, numEdits);
+            }
+            edits = newEdits;
+            chunkEdits[chunk] = edits;
+        }
+        edits[numEdits] = (index << 8) | id;
+        numChunkEdits[chunk] = numEdits + 1;
+    }
+
+
+    /**
+        Evicts the least recently used chunk. Its edits are kept,
+        so nothing is lost.
+    */
+    private void evictChunk() {
+        int lru = 0;
+        for (int i=1; i<numLoadedChunks; i++) {
+            if (chunkLastUsed[loadedChunks[i]] <
+                chunkLastUsed[loadedChunks[lru]])
+            {
+                lru = i;
+            }
+        }
+        int chunk = loadedChunks[lru];
+        chunkTiles[chunk] = null;
+        chunkSolid[chunk] = null;
+        chunkRows[chunk] = null;
+        loadedChunks[lru] = loadedChunks[--numLoadedChunks];
+    }
+
+
+    /**
+        Adds an Image to this map's palette of tile Images, and
+        returns its tile id. If the Image is already in the
+        palette, its existing id is returned. A null Image is the
+        empty tile.
+        @throws IllegalStateException if the palette is full.
+    */
+    public int addTileImage(Image image) {
+        if (image == null) {
+            return EMPTY_TILE;
+        }
+        Integer id = (Integer)paletteIds.get(image);
+        if (id != null) {
+            return id.intValue();
+        }
+        if (paletteSize == MAX_TILE_IDS) {
+            throw new IllegalStateException(
+                "Too many tile images");
+        }
+        if (paletteSize == palette.length) {
+            Image[] newPalette = new Image[palette.length * 2];
+            System.arraycopy(palette, 0, newPalette, 0, paletteSize);
+            palette = newPalette;
+        }
+        palette[paletteSize] = image;
+        paletteIds.put(image, Integer.valueOf(paletteSize));
+        paletteSize++;
+        return paletteSize - 1;
+    }
+
+
+    /**
+        Gets the Image for the specified tile id, or null for
+        the empty tile.
+    */
+    public Image getTileImage(int id) {
+        return palette[id];
+    }
+
+
+    /**
+        Gets the number of ids in this map's palette, including
+        the empty tile.
+    */
+    public int getPaletteSize() {
+        return paletteSize;
     }
 
 
@@ -88,10 +729,12 @@ public class TileMap {
 
 
     /**
-        Adds a Sprite object to this map.
+        Adds a Sprite object to this map, and records a
+        SpriteSpawnEvent.
     */
     public void addSprite(Sprite sprite) {
-        sprites.add(sprite);
+        spriteIndex.add(sprite);
+        SpriteSpawnEvent.emit(sprite, false);
     }
 
 
@@ -99,7 +742,16 @@ public class TileMap {
         Removes a Sprite object from this map.
     */
     public void removeSprite(Sprite sprite) {
-        sprites.remove(sprite);
+        spriteIndex.remove(sprite);
+    }
+
+
+    /**
+        Updates the location of a Sprite in this map after it
+        has moved.
+    */
+    public void updateSprite(Sprite sprite) {
+        spriteIndex.update(sprite);
     }
 
 
@@ -108,19 +760,147 @@ public class TileMap {
         excluding the player Sprite.
     */
     public Iterator getSprites() {
-        return sprites.iterator();
+        return new IndexedIterator(spriteIndex, false);
+    }
+
+
+    /**
+        Adds the Sprites that may overlap the specified Sprite to
+        the result list, excluding the player Sprite.
+    */
+    public void getSpritesNear(Sprite sprite, List result) {
+        spriteIndex.getNearby(sprite, result);
+    }
+
+
+    /**
+        Adds the Sprites that may overlap the specified rectangle
+        (in pixels) to the result list, excluding the player
+        Sprite.
+    */
+    public void getSpritesNear(int x, int y, int width, int height,
+        List result)
+    {
+        spriteIndex.getNearby(x, y, width, height, result);
+    }
+
+
+    /**
+        Gets the number of Sprites in this map, excluding the
+        player Sprite.
+    */
+    public int getNumSprites() {
+        return spriteIndex.size();
     }
     
     // BULLET LIST STUFF
+
+    /**
+        Sets the BulletPool that this map's Bullets come from.
+        Bullets removed from this map are returned to the pool.
+    */
+    public void setBulletPool(BulletPool bulletPool) {
+        this.bulletPool = bulletPool;
+    }
+
+    public BulletPool getBulletPool() {
+        return bulletPool;
+    }
+
+    /**
+        Gets an unused Bullet from this map's BulletPool. The
+        Bullet isn't added to the map.
+    */
+    public Bullet obtainBullet() {
+        return bulletPool.obtain();
+    }
+
     public void addBullet(Bullet sprite) {
-        bullets.add(sprite);
+        bulletIndex.add(sprite);
+        SpriteSpawnEvent.emit(sprite, true);
     }
 
     public void removeBullet(Bullet sprite) {
-        bullets.remove(sprite);
+        if (bulletIndex.remove(sprite)) {
+            freeBullet(sprite);
+        }
+    }
+
+    /**
+        Removes every Bullet from this map, returning them to the
+        BulletPool.
+    */
+    public void clearBullets() {
+        Iterator i = getBullets();
+        while (i.hasNext()) {
+            i.next();
+            i.remove();
+        }
+    }
+
+    public void updateBullet(Bullet sprite) {
+        bulletIndex.update(sprite);
     }
+
     public Iterator getBullets() {
-        return bullets.iterator();
+        return new IndexedIterator(bulletIndex, true);
+    }
+
+    public void getBulletsNear(Sprite sprite, List result) {
+        bulletIndex.getNearby(sprite, result);
+    }
+
+    public int getNumBullets() {
+        return bulletIndex.size();
+    }
+
+    /**
+        Adds the Bullets that may overlap the specified rectangle
+        (in pixels) to the result list.
+    */
+    public void getBulletsNear(int x, int y, int width, int height,
+        List result)
+    {
+        bulletIndex.getNearby(x, y, width, height, result);
+    }
+
+    private void freeBullet(Bullet sprite) {
+        if (bulletPool != null) {
+            bulletPool.free(sprite);
+        }
+    }
+
+
+    /**
+        An Iterator over the Sprites in a SpatialHash. Removed
+        Bullets are returned to the BulletPool.
+    */
+    private class IndexedIterator implements Iterator {
+
+        private Iterator i;
+        private boolean isBullets;
+        private Sprite current;
+
+        public IndexedIterator(SpatialHash index, boolean isBullets) {
+            this.i = index.iterator();
+            this.isBullets = isBullets;
+        }
+
+        public boolean hasNext() {
+            return i.hasNext();
+        }
+
+        public Object next() {
+            current = (Sprite)i.next();
+            return current;
+        }
+
+        public void remove() {
+            i.remove();
+            if (isBullets) {
+                freeBullet((Bullet)current);
+            }
+        }
     }
 
 }
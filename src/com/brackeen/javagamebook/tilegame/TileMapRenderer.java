@@ -1,17 +1,20 @@
 package com.brackeen.javagamebook.tilegame;
 
 import java.awt.*;
-import java.util.Iterator;
+import java.awt.image.VolatileImage;
+import java.util.ArrayList;
 import com.brackeen.javagamebook.tilegame.sprites.Player;
 
-import com.brackeen.javagamebook.tilegame.sprites.Bullet;
 import com.brackeen.javagamebook.graphics.Sprite;
-import com.brackeen.javagamebook.tilegame.sprites.Creature;
+import com.brackeen.javagamebook.util.FrameProfiler;
 
 /**
     The TileMapRenderer class draws a TileMap on the screen.
     It draws all tiles, sprites, and an optional background image
-    centered around the position of the player.
+    centered around the position of the player. Maps wider or
+    taller than the screen scroll to follow the player. Only the
+    sprites near the screen are visited, using the map's spatial
+    index.
 
     <p>If the width of background image is smaller the width of
     the tile map, the background image will appear to move
@@ -20,6 +23,12 @@ import com.brackeen.javagamebook.tilegame.sprites.Creature;
     <p>Also, three static methods are provided to convert pixels
     to tile positions, and vice-versa.
 
+    <p>Tiles never move, so they are drawn to cached images
+    (VolatileImages, which are usually in video memory) in square
+    strips of tiles, and only the few strips on screen are drawn
+    each frame. A strip is drawn again when its image is lost or
+    one of its tiles changes.
+
     <p>This TileMapRender uses a tile size of 64.
 */
 public class TileMapRenderer {
@@ -29,7 +38,29 @@ public class TileMapRenderer {
     // Math.pow(2, TILE_SIZE_BITS) == TILE_SIZE
     private static final int TILE_SIZE_BITS = 6;
 
+    // the width and height, in tiles, of each cached strip of
+    // tiles. Must divide TileMap.CHUNK_WIDTH.
+    private static final int STRIP_TILES = 16;
+    // the number of cached strips. Up to four strips are
+    // visible at once if the screen is smaller than a strip.
+    private static final int MAX_STRIPS = 6;
+    private static final Color TRANSPARENT = new Color(0, 0, 0, 0);
+
+    // extra pixels around the screen when finding visible sprites
+    private static final int CULL_MARGIN = TILE_SIZE;
+
     private Image background;
+    private ArrayList visibleCache = new ArrayList();
+    private int spritesDrawn;
+    private int spritesCulled;
+    private Strip[] strips = new Strip[MAX_STRIPS];
+    private TileMap stripMap;
+    private long frameCount;
+    private int tileDrawCount;
+    private long stripRenderCount;
+    private FrameProfiler profiler;
+    private int tilePhase;
+    private int spritePhase;
 
     /**
         Converts a pixel position to a tile position.
@@ -66,6 +97,87 @@ public class TileMapRenderer {
     }
 
 
+    /**
+        Gets the horizontal scrolling position of the map, based
+        on the player's position. The map is drawn this many
+        pixels to the right (the value is zero or negative).
+    */
+    public static int getOffsetX(TileMap map, int screenWidth) {
+        return getOffsetX(map, screenWidth, map.getPlayer().getX());
+    }
+
+
+    private static int getOffsetX(TileMap map, int screenWidth,
+        float playerX)
+    {
+        int mapWidth = tilesToPixels(map.getWidth());
+        int offsetX = screenWidth / 2 -
+            Math.round(playerX) - TILE_SIZE;
+        offsetX = Math.min(offsetX, 0);
+        offsetX = Math.max(offsetX, screenWidth - mapWidth);
+        return offsetX;
+    }
+
+
+    /**
+        Gets the number of sprites and bullets (not including the
+        player) drawn in the last frame.
+    */
+    public int getSpritesDrawn() {
+        return spritesDrawn;
+    }
+
+
+    /**
+        Gets the number of sprites and bullets that were not
+        drawn in the last frame because they were off screen.
+    */
+    public int getSpritesCulled() {
+        return spritesCulled;
+    }
+
+
+    /**
+        Gets the number of drawImage() calls used to draw the
+        tiles in the last frame (one for each visible strip).
+    */
+    public int getTileDrawCount() {
+        return tileDrawCount;
+    }
+
+
+    /**
+        Gets the number of times a strip of tiles was drawn to
+        its cached image, since this renderer was created.
+    */
+    public long getStripRenderCount() {
+        return stripRenderCount;
+    }
+
+
+    /**
+        Gets the vertical scrolling position of the map, based on
+        the player's position. The map is drawn this many pixels
+        down. Maps shorter than the screen are drawn at the bottom
+        of the screen.
+    */
+    public static int getOffsetY(TileMap map, int screenHeight) {
+        return getOffsetY(map, screenHeight, map.getPlayer().getY());
+    }
+
+
+    private static int getOffsetY(TileMap map, int screenHeight,
+        float playerY)
+    {
+        int mapHeight = tilesToPixels(map.getHeight());
+        int offsetY = screenHeight / 2 -
+            Math.round(playerY) - TILE_SIZE;
+        offsetY = Math.min(offsetY, 0);
+        offsetY = Math.max(offsetY, screenHeight - mapHeight);
+        return offsetY;
+    }
+
+
     /**
         Sets the background to draw.
     */
@@ -79,22 +191,35 @@ public class TileMapRenderer {
     */
     public void draw(Graphics2D g, TileMap map,
         int screenWidth, int screenHeight)
+    {
+        draw(g, map, screenWidth, screenHeight, 1);
+    }
+
+
+    /**
+        Draws the specified TileMap. Sprites are drawn at
+        positions interpolated between their saved and current
+        positions (see Sprite.getRenderX()).
+    */
+    public void draw(Graphics2D g, TileMap map,
+        int screenWidth, int screenHeight, float alpha)
     {
         Player player = (Player) map.getPlayer();
         int mapWidth = tilesToPixels(map.getWidth());
 
         // get the scrolling position of the map
         // based on player's position
-        int offsetX = screenWidth / 2 -
-            Math.round(player.getX()) - TILE_SIZE;
-        offsetX = Math.min(offsetX, 0);
-        offsetX = Math.max(offsetX, screenWidth - mapWidth);
+        int offsetX = getOffsetX(map, screenWidth,
+            player.getRenderX(alpha));
 
-        // get the y offset to draw all sprites and tiles
-        int offsetY = screenHeight -
-            tilesToPixels(map.getHeight());
+        // get the y offset to draw all sprites and tiles. Maps
+        // taller than the screen scroll vertically to follow the
+        // player
+        int offsetY = getOffsetY(map, screenHeight,
+            player.getRenderY(alpha));
 
         // draw black background, if needed
+        startPhase(tilePhase);
         if (background == null ||
             screenHeight > background.getHeight(null))
         {
@@ -116,59 +241,233 @@ public class TileMapRenderer {
         int firstTileX = pixelsToTiles(-offsetX);
         int lastTileX = firstTileX +
             pixelsToTiles(screenWidth) + 1;
-        for (int y=0; y<map.getHeight(); y++) {
-            for (int x=firstTileX; x <= lastTileX; x++) {
-                Image image = map.getTile(x, y);
-                if (image != null) {
-                    g.drawImage(image,
-                        tilesToPixels(x) + offsetX,
-                        tilesToPixels(y) + offsetY,
-                        null);
+        map.prepareChunks(firstTileX - TileMap.CHUNK_WIDTH,
+            lastTileX + TileMap.CHUNK_WIDTH);
+        drawTiles(g, map, screenWidth, screenHeight, offsetX, offsetY);
+        endPhase(tilePhase);
+
+        // draw player
+        startPhase(spritePhase);
+        player.getRegion().draw(g,
+            Math.round(player.getRenderX(alpha)) + offsetX,
+            Math.round(player.getRenderY(alpha)) + offsetY);
+
+        // draw the sprites and bullets near the screen. Sprites
+        // are drawn at interpolated positions, so the culling
+        // rectangle has a margin
+        int cullX = -offsetX - CULL_MARGIN;
+        int cullY = -offsetY - CULL_MARGIN;
+        int cullWidth = screenWidth + CULL_MARGIN * 2;
+        int cullHeight = screenHeight + CULL_MARGIN * 2;
+        visibleCache.clear();
+        map.getSpritesNear(cullX, cullY, cullWidth, cullHeight,
+            visibleCache);
+        map.getBulletsNear(cullX, cullY, cullWidth, cullHeight,
+            visibleCache);
+        spritesDrawn = 0;
+        for (int i=0; i<visibleCache.size(); i++) {
+            Sprite sprite = (Sprite)visibleCache.get(i);
+            int x = Math.round(sprite.getRenderX(alpha)) + offsetX;
+            int y = Math.round(sprite.getRenderY(alpha)) + offsetY;
+            if (x + sprite.getWidth() > 0 && x < screenWidth &&
+                y + sprite.getHeight() > 0 && y < screenHeight)
+            {
+                sprite.getRegion().draw(g, x, y);
+                spritesDrawn++;
+            }
+        }
+        visibleCache.clear();
+        spritesCulled = map.getNumSprites() + map.getNumBullets() -
+            spritesDrawn;
+        endPhase(spritePhase);
+    }
+
+
+    /**
+        Sets the FrameProfiler used to time drawing. The
+        background and tiles are counted in tilePhase, and the
+        sprites in spritePhase.
+    */
+    public void setProfiler(FrameProfiler profiler, int tilePhase,
+        int spritePhase)
+    {
+        this.profiler = profiler;
+        this.tilePhase = tilePhase;
+        this.spritePhase = spritePhase;
+    }
+
+
+    private void startPhase(int phase) {
+        if (profiler != null) {
+            profiler.start(phase);
+        }
+    }
+
+
+    private void endPhase(int phase) {
+        if (profiler != null) {
+            profiler.end(phase);
+        }
+    }
+
+
+    /**
+        Draws the visible tiles using the cached strip images,
+        rendering strips that aren't cached, whose tiles changed,
+        or whose image contents were lost.
+    */
+    private void drawTiles(Graphics2D g, TileMap map,
+        int screenWidth, int screenHeight, int offsetX, int offsetY)
+    {
+        if (map != stripMap) {
+            // a different map; none of the strips are valid
+            for (int i=0; i<strips.length; i++) {
+                if (strips[i] != null) {
+                    strips[i].map = null;
                 }
             }
+            stripMap = map;
         }
+        GraphicsConfiguration gc = g.getDeviceConfiguration();
+        frameCount++;
+        tileDrawCount = 0;
 
-        // draw player
-        g.drawImage(player.getImage(),
-            Math.round(player.getX()) + offsetX,
-            Math.round(player.getY()) + offsetY,
-            null);
-
-        // draw sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite sprite = (Sprite)i.next();
-            int x = Math.round(sprite.getX()) + offsetX;
-            int y = Math.round(sprite.getY()) + offsetY;
-            g.drawImage(sprite.getImage(), x, y, null);
-
-            // wake up the creature when it's on screen
-            if (sprite instanceof Creature &&
-                x >= 0 && x < screenWidth)
-            {
-                ((Creature)sprite).wakeUp();
+        int numStripsX = (map.getWidth() + STRIP_TILES - 1) /
+            STRIP_TILES;
+        int numStripsY = (map.getHeight() + STRIP_TILES - 1) /
+            STRIP_TILES;
+        int firstStripX = Math.max(0,
+            pixelsToTiles(-offsetX) / STRIP_TILES);
+        int lastStripX = Math.min(numStripsX - 1,
+            pixelsToTiles(screenWidth - offsetX - 1) / STRIP_TILES);
+        int firstStripY = Math.max(0,
+            pixelsToTiles(-offsetY) / STRIP_TILES);
+        int lastStripY = Math.min(numStripsY - 1,
+            pixelsToTiles(screenHeight - offsetY - 1) / STRIP_TILES);
+
+        for (int sy=firstStripY; sy<=lastStripY; sy++) {
+            for (int sx=firstStripX; sx<=lastStripX; sx++) {
+                Strip strip = getStrip(map, sx, sy);
+                int version = map.getChunkVersion(
+                    sx * STRIP_TILES / TileMap.CHUNK_WIDTH);
+                int x = tilesToPixels(sx * STRIP_TILES) + offsetX;
+                int y = tilesToPixels(sy * STRIP_TILES) + offsetY;
+                do {
+                    boolean render = (strip.map != map ||
+                        strip.version != version);
+                    if (strip.image == null) {
+                        strip.image = createStripImage(gc);
+                        render = true;
+                    }
+                    else {
+                        int status = strip.image.validate(gc);
+                        if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                            strip.image.flush();
+                            strip.image = createStripImage(gc);
+                            render = true;
+                        }
+                        else if (status ==
+                            VolatileImage.IMAGE_RESTORED)
+                        {
+                            render = true;
+                        }
+                    }
+                    if (render) {
+                        renderStrip(strip, map);
+                        strip.map = map;
+                        strip.version = version;
+                    }
+                    g.drawImage(strip.image, x, y, null);
+                    tileDrawCount++;
+                }
+                while (strip.image.contentsLost());
             }
         }
-        
-        Iterator j = map.getBullets();
-        while (j.hasNext()){
-        	Bullet sprite = (Bullet)j.next();
-            int x = Math.round(sprite.getX()) + offsetX;
-            int y = Math.round(sprite.getY()) + offsetY;
-            g.drawImage(sprite.getImage(), x, y, null);
+    }
+
+
+    /**
+        Gets the cached strip at the specified strip location. If
+        it isn't cached, the least recently used strip is reused
+        (and must be rendered).
+    */
+    private Strip getStrip(TileMap map, int stripX, int stripY) {
+        Strip lru = null;
+        for (int i=0; i<strips.length; i++) {
+            Strip strip = strips[i];
+            if (strip == null) {
+                strip = new Strip();
+                strips[i] = strip;
+            }
+            else if (strip.map == map && strip.stripX == stripX &&
+                strip.stripY == stripY)
+            {
+                strip.lastUsed = frameCount;
+                return strip;
+            }
+            if (lru == null || strip.lastUsed < lru.lastUsed) {
+                lru = strip;
+            }
         }
-        
-        
-        // My Display
-        g.drawImage(null, 70, 100, null);
-        g.setColor(Color.WHITE);
-        g.drawString("Player Health: " + player.getHealth(), 70, 100);
-        
-        g.drawImage(null, 400, 100, null);
-        g.setColor(Color.WHITE);
-        g.drawString("Score: " + player.getScore(), 400, 100);
+        lru.map = null;
+        lru.stripX = stripX;
+        lru.stripY = stripY;
+        lru.lastUsed = frameCount;
+        return lru;
+    }
 
-        
+
+    private VolatileImage createStripImage(GraphicsConfiguration gc) {
+        int size = tilesToPixels(STRIP_TILES);
+        return gc.createCompatibleVolatileImage(size, size,
+            Transparency.BITMASK);
     }
 
+
+    /**
+        Draws the tiles of a strip to its image.
+    */
+    private void renderStrip(Strip strip, TileMap map) {
+        Graphics2D g = strip.image.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.setColor(TRANSPARENT);
+        g.fillRect(0, 0, strip.image.getWidth(),
+            strip.image.getHeight());
+        g.setComposite(AlphaComposite.SrcOver);
+
+        // only visit the non-empty tiles of non-empty rows
+        int chunk = strip.stripX * STRIP_TILES / TileMap.CHUNK_WIDTH;
+        int fromX = strip.stripX * STRIP_TILES;
+        int fromY = strip.stripY * STRIP_TILES;
+        int toX = fromX + STRIP_TILES - 1;
+        int toY = fromY + STRIP_TILES - 1;
+        int y = map.getNextOccupiedRow(chunk, fromY, toY);
+        while (y != -1) {
+            int x = map.getFirstSolidTile(y, fromX, toX);
+            while (x != -1) {
+                g.drawImage(map.getTileImage(map.getTileId(x, y)),
+                    tilesToPixels(x - fromX),
+                    tilesToPixels(y - fromY),
+                    null);
+                x = map.getFirstSolidTile(y, x + 1, toX);
+            }
+            y = map.getNextOccupiedRow(chunk, y + 1, toY);
+        }
+        g.dispose();
+        stripRenderCount++;
+    }
+
+
+    /**
+        A cached image of a square of STRIP_TILES x STRIP_TILES
+        tiles.
+    */
+    private static class Strip {
+        TileMap map;
+        int stripX;
+        int stripY;
+        int version;
+        long lastUsed;
+        VolatileImage image;
+    }
 }
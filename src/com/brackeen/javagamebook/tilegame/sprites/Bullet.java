@@ -1,5 +1,4 @@
 package com.brackeen.javagamebook.tilegame.sprites;
-import java.lang.reflect.Constructor;
 
 import com.brackeen.javagamebook.graphics.Animation;
 import com.brackeen.javagamebook.graphics.Sprite;
@@ -16,6 +15,9 @@ public class Bullet extends Sprite{
     public boolean canShoot = true;
     public float shotTime;
     public float travel = 0;
+    // position at the start of the last move
+    public float lastX;
+    public float lastY;
     
 	public Bullet (Animation left, Animation right,Animation deadLeft, Animation deadRight){
 		super(right);
@@ -25,21 +27,30 @@ public class Bullet extends Sprite{
         this.deadRight = deadRight;
 	    }
 	
-	public Object clone() {
-        // use reflection to create the correct subclass
-        Constructor constructor = getClass().getConstructors()[0];
-        try {
-            return constructor.newInstance(new Object[] {
-                (Animation)left.clone(),
-                (Animation)right.clone(),
-                (Animation)deadLeft.clone(),
-                (Animation)deadRight.clone()
-            });
-        }
-        catch (Exception ex) {
-            // should never happen
-            ex.printStackTrace();
-            return null;
-        }
-    }
+	/**
+	    Resets this Bullet to its initial state so it can be
+	    reused.
+	*/
+	public void reset() {
+	    direction = 1;
+	    fromPlayer = true;
+	    canShoot = true;
+	    shotTime = 0;
+	    travel = 0;
+	    setVelocityX(0);
+	    setVelocityY(0);
+	    clearSavedPosition();
+	    anim = right;
+	    anim.start();
+	}
+
+	/**
+	    Remembers the current position as the start of this
+	    Bullet's next move, so collisions can be tested along the
+	    whole path.
+	*/
+	public void markStart() {
+	    lastX = getX();
+	    lastY = getY();
+	}
 }
\ No newline at end of file
@@ -1,6 +1,5 @@
 package com.brackeen.javagamebook.tilegame.sprites;
 
-import java.lang.reflect.Constructor;
 import com.brackeen.javagamebook.graphics.*;
 
 /**
@@ -13,21 +12,6 @@ public abstract class PowerUp extends Sprite {
     }
 
 
-    public Object clone() {
-        // use reflection to create the correct subclass
-        Constructor constructor = getClass().getConstructors()[0];
-        try {
-            return constructor.newInstance(
-                new Object[] {(Animation)anim.clone()});
-        }
-        catch (Exception ex) {
-            // should never happen
-            ex.printStackTrace();
-            return null;
-        }
-    }
-
-
     /**
         A Star PowerUp. Gives the player points.
     */
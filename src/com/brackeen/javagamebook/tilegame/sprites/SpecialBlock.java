@@ -1,5 +1,4 @@
 package com.brackeen.javagamebook.tilegame.sprites;
-import java.lang.reflect.Constructor;
 import com.brackeen.javagamebook.graphics.*;
 
 
@@ -7,19 +6,6 @@ public abstract class SpecialBlock extends Sprite {
     public SpecialBlock(Animation anim) {
         super(anim);
     }
-    public Object clone() {
-        // use reflection to create the correct subclass
-        Constructor constructor = getClass().getConstructors()[0];
-        try {
-            return constructor.newInstance(
-                new Object[] {(Animation)anim.clone()});
-        }
-        catch (Exception ex) {
-            // should never happen
-            ex.printStackTrace();
-            return null;
-        }
-    }
     /**
     An Explode SpecialBlock. Decreases health.
     */
@@ -0,0 +1,254 @@
+package com.brackeen.javagamebook.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+    The BakedCache class keeps data derived from asset files (like
+    decoded image pixels or converted sound samples) on disk, so
+    it doesn't have to be derived again the next time the game
+    starts. Cached data is memory-mapped when it is read.
+    <p>Each entry is stored for a source file and a target format
+    (a string describing how the data was derived, like
+    "argb" or an AudioFormat). The entry records a hash of the
+    source file's contents, so if the source file changes, the
+    entry is ignored and replaced the next time it is stored.
+    <p>If the cache directory can't be created, nothing is
+    cached. All methods are thread-safe.
+*/
+public class BakedCache {
+
+    private static final int MAGIC = 0x42414b45;
+    private static final int VERSION = 1;
+    private static final String HASH_ALGORITHM = "SHA-1";
+    private static final int HASH_SIZE = 20;
+    private static final int HEADER_SIZE = 8 + HASH_SIZE;
+    private static final String FILE_EXTENSION = ".bake";
+
+    private static BakedCache defaultCache;
+
+    private File dir;
+    private boolean enabled;
+
+    // hashes of source files, by path
+    private HashMap hashes = new HashMap();
+
+    /**
+        Gets the BakedCache shared by the game. Its directory is
+        set with the "tilegame.cacheDir" system property, and is
+        "cache" by default. If the property is an empty string,
+        the cache is disabled.
+    */
+    public static synchronized BakedCache getDefault() {
+        if (defaultCache == null) {
+            String dirName = System.getProperty("tilegame.cacheDir",
+                "cache");
+            defaultCache = new BakedCache(
+                (dirName.length() == 0) ? null : new File(dirName));
+        }
+        return defaultCache;
+    }
+
+
+    /**
+        Creates a new BakedCache that stores entries in the
+        specified directory, creating it if needed. If dir is
+        null, the cache is disabled.
+    */
+    public BakedCache(File dir) {
+        this.dir = dir;
+        enabled = (dir != null && (dir.isDirectory() || dir.mkdirs()));
+    }
+
+
+    /**
+        Returns true if this cache can store entries.
+    */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /**
+        Gets the cached data for the specified source file and
+        format, positioned at the start of the data. Returns null
+        if there is no entry, or if the source file changed since
+        the entry was stored.
+    */
+    public ByteBuffer get(File source, String format) {
+        if (!enabled) {
+            return null;
+        }
+        byte[] hash = getHash(source);
+        File file = getFile(source, format);
+        if (hash == null || !file.isFile()) {
+            return null;
+        }
+        try {
+            FileInputStream in = new FileInputStream(file);
+            MappedByteBuffer buffer;
+            try {
+                FileChannel channel = in.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            }
+            finally {
+                in.close();
+            }
+
+            // check the header
+            if (buffer.remaining() < HEADER_SIZE ||
+                buffer.getInt() != MAGIC ||
+                buffer.getInt() != VERSION)
+            {
+                return null;
+            }
+            byte[] entryHash = new byte[HASH_SIZE];
+            buffer.get(entryHash);
+            if (!Arrays.equals(hash, entryHash)) {
+                return null;
+            }
+            return buffer.slice();
+        }
+        catch (IOException ex) {
+            return null;
+        }
+    }
+
+
+    /**
+        Stores data for the specified source file and format,
+        replacing any existing entry. The data from the buffer's
+        position to its limit is stored. Errors are printed and
+        otherwise ignored, since the data can always be derived
+        again.
+    */
+    public void put(File source, String format, ByteBuffer data) {
+        if (!enabled) {
+            return;
+        }
+        byte[] hash = getHash(source);
+        if (hash == null) {
+            return;
+        }
+        File file = getFile(source, format);
+        try {
+            // write to a temporary file, then rename it, so a
+            // partly-written entry is never read
+            File tempFile = File.createTempFile("bake", ".tmp", dir);
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.put(hash);
+                header.flip();
+                FileChannel channel = out.getChannel();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                data = data.duplicate();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+            finally {
+                out.close();
+            }
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        }
+        catch (IOException ex) {
+            System.err.println("BakedCache: couldn't store " +
+                file + ": " + ex);
+        }
+    }
+
+
+    /**
+        Gets the cache file for a source file and format. The name
+        includes the source path and the format, so different
+        sources and formats never share an entry.
+    */
+    private File getFile(File source, String format) {
+        String name = source.getPath() + "." + format;
+        StringBuffer buf = new StringBuffer(name.length());
+        for (int i=0; i<name.length(); i++) {
+            char ch = name.charAt(i);
+            if (Character.isLetterOrDigit(ch) || ch == '.' ||
+                ch == '-')
+            {
+                buf.append(ch);
+            }
+            else {
+                buf.append('_');
+            }
+        }
+        buf.append(FILE_EXTENSION);
+        return new File(dir, buf.toString());
+    }
+
+
+    /**
+        Gets the hash of a source file's contents, or null if the
+        file can't be read. Hashes are kept as long as the file's
+        size and modification time don't change, so each file is
+        only read once.
+    */
+    private byte[] getHash(File source) {
+        String stamp = source.length() + ":" + source.lastModified();
+        String path = source.getPath();
+        synchronized (hashes) {
+            HashEntry entry = (HashEntry)hashes.get(path);
+            if (entry != null && entry.stamp.equals(stamp)) {
+                return entry.hash;
+            }
+        }
+
+        byte[] hash;
+        try {
+            MessageDigest digest =
+                MessageDigest.getInstance(HASH_ALGORITHM);
+            InputStream in = new FileInputStream(source);
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, count);
+                }
+            }
+            finally {
+                in.close();
+            }
+            hash = digest.digest();
+        }
+        catch (IOException ex) {
+            return null;
+        }
+        catch (NoSuchAlgorithmException ex) {
+            return null;
+        }
+
+        synchronized (hashes) {
+            HashEntry entry = new HashEntry();
+            entry.stamp = stamp;
+            entry.hash = hash;
+            hashes.put(path, entry);
+        }
+        return hash;
+    }
+
+
+    private static class HashEntry {
+        String stamp;
+        byte[] hash;
+    }
+}
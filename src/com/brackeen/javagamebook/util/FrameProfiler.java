@@ -0,0 +1,277 @@
+package com.brackeen.javagamebook.util;
+
+import java.io.*;
+
+/**
+    The FrameProfiler class measures how long each phase of a
+    frame (like updating, drawing, and so on) takes. Call
+    start() and end() around the code of a phase, and
+    endFrame() at the end of each frame. A phase can be started
+    and ended more than once in a frame; the times are added.
+    Phases can be nested (for example, collision checks inside a
+    creature update), in which case the time is counted in both.
+    <p>The time of each phase, and of the whole frame, is kept
+    for the last few frames in ring buffers, and is recorded in
+    a Histogram for percentiles. Every interval (5 seconds by
+    default) the histograms are saved as the last interval's
+    results, optionally written to a dump file, and reset.
+    <p>Profiling doesn't allocate objects, except when writing
+    to the dump file. When disabled, start() and end() only
+    check a flag.
+*/
+public class FrameProfiler {
+
+    private static final long NANOS_PER_MILLI = 1000000;
+    // times longer than this are counted as this long
+    private static final long HIGHEST_TIME = 60000 * NANOS_PER_MILLI;
+    private static final long DEFAULT_INTERVAL = 5000;
+
+    private String[] phaseNames;
+    private boolean enabled = true;
+
+    // start time of each running phase, and the time so far
+    // this frame. The last entry is the whole frame.
+    private long[] startTimes;
+    private long[] frameTimes;
+    private long frameStartTime;
+
+    // times of the last frames, by phase
+    private long[][] history;
+    private int historyIndex;
+    private int historyCount;
+
+    private Histogram[] histograms;
+    private Histogram[] lastHistograms;
+    private long interval = DEFAULT_INTERVAL * NANOS_PER_MILLI;
+    private long intervalStartTime;
+    private long intervalCount;
+
+    private PrintWriter dumpWriter;
+
+    /**
+        Creates a new FrameProfiler with the specified phases,
+        keeping the times of the last historySize frames.
+    */
+    public FrameProfiler(String[] phaseNames, int historySize) {
+        this.phaseNames = phaseNames;
+        int numSeries = phaseNames.length + 1;
+        startTimes = new long[numSeries];
+        frameTimes = new long[numSeries];
+        history = new long[numSeries][historySize];
+        histograms = new Histogram[numSeries];
+        lastHistograms = new Histogram[numSeries];
+        for (int i=0; i<numSeries; i++) {
+            histograms[i] = new Histogram(HIGHEST_TIME);
+            lastHistograms[i] = new Histogram(HIGHEST_TIME);
+        }
+        frameStartTime = System.nanoTime();
+        intervalStartTime = frameStartTime;
+    }
+
+
+    /**
+        Sets whether profiling is enabled. Profiling starts with
+        the next frame.
+    */
+    public void setEnabled(boolean enabled) {
+        if (enabled && !this.enabled) {
+            frameStartTime = System.nanoTime();
+            intervalStartTime = frameStartTime;
+            for (int i=0; i<frameTimes.length; i++) {
+                frameTimes[i] = 0;
+            }
+        }
+        this.enabled = enabled;
+    }
+
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /**
+        Sets how often, in milliseconds, the histograms are saved
+        and reset.
+    */
+    public void setInterval(long interval) {
+        this.interval = interval * NANOS_PER_MILLI;
+    }
+
+
+    /**
+        Starts writing the results of each interval to the
+        specified file. The results are appended to the file.
+    */
+    public void setDumpFile(String filename) throws IOException {
+        closeDumpFile();
+        dumpWriter = new PrintWriter(new BufferedWriter(
+            new FileWriter(filename, true)));
+        dumpWriter.println("# interval phase count mean_us " +
+            "p50_us p90_us p99_us p999_us max_us");
+        dumpWriter.flush();
+    }
+
+
+    /**
+        Stops writing results to the dump file, and closes it.
+    */
+    public void closeDumpFile() {
+        if (dumpWriter != null) {
+            dumpWriter.close();
+            dumpWriter = null;
+        }
+    }
+
+
+    /**
+        Gets the number of phases.
+    */
+    public int getNumPhases() {
+        return phaseNames.length;
+    }
+
+
+    public String getPhaseName(int phase) {
+        return phaseNames[phase];
+    }
+
+
+    /**
+        Starts timing a phase.
+    */
+    public void start(int phase) {
+        if (enabled) {
+            startTimes[phase] = System.nanoTime();
+        }
+    }
+
+
+    /**
+        Stops timing a phase, adding the time since start() to
+        the phase's time for this frame.
+    */
+    public void end(int phase) {
+        if (enabled) {
+            frameTimes[phase] += System.nanoTime() - startTimes[phase];
+        }
+    }
+
+
+    /**
+        Ends a frame: records the time of each phase, and the time
+        since the last frame ended. If an interval has passed, the
+        histograms are saved (and dumped) and reset.
+    */
+    public void endFrame() {
+        if (!enabled) {
+            return;
+        }
+        long time = System.nanoTime();
+        int last = phaseNames.length;
+        frameTimes[last] = time - frameStartTime;
+        frameStartTime = time;
+
+        for (int i=0; i<frameTimes.length; i++) {
+            history[i][historyIndex] = frameTimes[i];
+            histograms[i].record(frameTimes[i]);
+            frameTimes[i] = 0;
+        }
+        historyIndex = (historyIndex + 1) % history[0].length;
+        historyCount = Math.min(historyCount + 1, history[0].length);
+
+        if (time - intervalStartTime >= interval) {
+            endInterval();
+            intervalStartTime = time;
+        }
+    }
+
+
+    private void endInterval() {
+        intervalCount++;
+        for (int i=0; i<histograms.length; i++) {
+            lastHistograms[i].copyFrom(histograms[i]);
+            histograms[i].reset();
+        }
+        if (dumpWriter != null) {
+            for (int i=0; i<lastHistograms.length; i++) {
+                dump(intervalCount, (i < phaseNames.length) ?
+                    phaseNames[i] : "frame", lastHistograms[i]);
+            }
+            dumpWriter.flush();
+        }
+    }
+
+
+    private void dump(long intervalNumber, String name, Histogram h) {
+        dumpWriter.println(intervalNumber + " " + name + " " +
+            h.getCount() + " " +
+            toMicros(h.getMean()) + " " +
+            toMicros(h.getValueAtPercentile(50)) + " " +
+            toMicros(h.getValueAtPercentile(90)) + " " +
+            toMicros(h.getValueAtPercentile(99)) + " " +
+            toMicros(h.getValueAtPercentile(99.9)) + " " +
+            toMicros(h.getMax()));
+    }
+
+
+    private static long toMicros(long nanos) {
+        return nanos / 1000;
+    }
+
+
+    /**
+        Gets the number of frames in the history, up to the
+        history size.
+    */
+    public int getHistoryCount() {
+        return historyCount;
+    }
+
+
+    /**
+        Gets the time, in nanoseconds, a phase took in a recent
+        frame. A framesAgo of 0 is the last frame.
+    */
+    public long getTime(int phase, int framesAgo) {
+        int size = history[phase].length;
+        return history[phase][(historyIndex - 1 - framesAgo + size * 2) %
+            size];
+    }
+
+
+    /**
+        Gets the time, in nanoseconds, of a recent frame (from the
+        end of the previous frame to the end of that frame). A
+        framesAgo of 0 is the last frame.
+    */
+    public long getFrameTime(int framesAgo) {
+        return getTime(phaseNames.length, framesAgo);
+    }
+
+
+    /**
+        Gets the histogram of a phase's times in the last
+        complete interval.
+    */
+    public Histogram getHistogram(int phase) {
+        return lastHistograms[phase];
+    }
+
+
+    /**
+        Gets the histogram of frame times in the last complete
+        interval.
+    */
+    public Histogram getFrameHistogram() {
+        return lastHistograms[phaseNames.length];
+    }
+
+
+    /**
+        Gets the number of intervals that have ended.
+    */
+    public long getIntervalCount() {
+        return intervalCount;
+    }
+}
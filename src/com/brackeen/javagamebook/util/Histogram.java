@@ -0,0 +1,159 @@
+package com.brackeen.javagamebook.util;
+
+/**
+    The Histogram class counts recorded values (like times in
+    nanoseconds) in buckets, so percentiles can be found without
+    keeping every value. Buckets are log-linear, like
+    HdrHistogram: values below 128 each have their own bucket,
+    and each power of two above that is split into 64 buckets, so
+    a percentile is accurate to within about 1.5%. Recording a
+    value doesn't allocate objects.
+*/
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    private long highestValue;
+    private int[] counts;
+    private long totalCount;
+    private long total;
+    private long min;
+    private long max;
+
+    /**
+        Creates a new Histogram for values from 0 to the specified
+        highest value. Larger values are counted as the highest
+        value.
+    */
+    public Histogram(long highestValue) {
+        this.highestValue = Math.max(highestValue, SUB_BUCKET_COUNT);
+        counts = new int[getIndex(this.highestValue) + 1];
+        reset();
+    }
+
+
+    /**
+        Removes all recorded values.
+    */
+    public void reset() {
+        for (int i=0; i<counts.length; i++) {
+            counts[i] = 0;
+        }
+        totalCount = 0;
+        total = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+
+    /**
+        Records a value. Negative values are counted as 0.
+    */
+    public void record(long value) {
+        value = Math.max(0, Math.min(value, highestValue));
+        counts[getIndex(value)]++;
+        totalCount++;
+        total += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+
+    /**
+        Gets the number of recorded values.
+    */
+    public long getCount() {
+        return totalCount;
+    }
+
+
+    /**
+        Gets the smallest recorded value, or 0 if no values were
+        recorded.
+    */
+    public long getMin() {
+        return (totalCount == 0) ? 0 : min;
+    }
+
+
+    /**
+        Gets the largest recorded value.
+    */
+    public long getMax() {
+        return max;
+    }
+
+
+    /**
+        Gets the mean of the recorded values.
+    */
+    public long getMean() {
+        return (totalCount == 0) ? 0 : total / totalCount;
+    }
+
+
+    /**
+        Gets the value that the specified percentage (from 0 to
+        100) of recorded values are less than or equal to. The
+        value is the highest value in its bucket, but never more
+        than the largest recorded value.
+    */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = (long)Math.ceil(percentile / 100 * totalCount);
+        target = Math.max(1, Math.min(target, totalCount));
+        long count = 0;
+        for (int i=0; i<counts.length; i++) {
+            count += counts[i];
+            if (count >= target) {
+                return Math.min(getHighestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+
+    /**
+        Copies the recorded values of another Histogram with the
+        same highest value into this one.
+    */
+    public void copyFrom(Histogram histogram) {
+        System.arraycopy(histogram.counts, 0, counts, 0,
+            counts.length);
+        totalCount = histogram.totalCount;
+        total = histogram.total;
+        min = histogram.min;
+        max = histogram.max;
+    }
+
+
+    /**
+        Gets the bucket of a value.
+    */
+    private static int getIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value) -
+            (SUB_BUCKET_BITS - 1);
+        int subBucket = (int)(value >>> exponent);
+        return exponent * SUB_BUCKET_HALF + subBucket;
+    }
+
+
+    /**
+        Gets the highest value in a bucket.
+    */
+    private static long getHighestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKET_HALF - 1;
+        long subBucket = index % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((subBucket + 1) << exponent) - 1;
+    }
+}